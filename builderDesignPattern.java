@@ -21,6 +21,14 @@ Monitoring
 Ensures immutability once the server is created
 Performs centralized validation before object creation
 Prevents creation of invalid server configurations
+Structurally identical servers can be shared (interned) and string fields are pooled
+Variants can be derived from a validated template without re-running full validation
+Large fleet plans are validated in bulk (in parallel), collecting every error per config
+Servers are packed onto a per-region host inventory using as few hosts as possible
+Auto-scaling settings (min/max instances) can be replayed against a load trace to compare policies
+Configurations have a compact binary format (bit-packed flags, varints, dictionary-encoded strings)
+Changes are computed as a diff; rebuilding from an existing server only re-checks rules on changed fields
+Security groups are parsed once into a shared bitset (custom names kept beside it), and a fleet index answers "who exposes port 22?"
     
 Design Constraints
 Object creation must be readable and flexible
@@ -65,6 +73,356 @@ UML design
 +----------------------+
 
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+
+// Every configurable field of a CloudServer; used for diffs (bit = ordinal)
+enum ServerField {
+    REGION,
+    CPU_CORES,
+    RAM_GB,
+    OS_TYPE,
+    GPU_ENABLED,
+    GPU_TYPE,
+    AUTO_SCALING,
+    MIN_INSTANCE,
+    MAX_INSTANCE,
+    LOAD_BALANCER,
+    BACKUP_ENABLED,
+    BACKUP_FREQUENCY,
+    SECURITY_GROUPS,
+    MONITORING;
+
+    public int bit() {
+        return 1 << ordinal();
+    }
+
+    public static EnumSet<ServerField> fromMask(int mask) {
+        EnumSet<ServerField> fields = EnumSet.noneOf(ServerField.class);
+        for (ServerField field : values()) {
+            if ((mask & field.bit()) != 0) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+}
+
+// Every rule a configuration can break; validation returns them as a bitmask
+// (bit = ordinal) so checking a config allocates nothing and throws nothing.
+// Each rule lists the fields it reads, so a change only re-checks its rules.
+enum ValidationError {
+    INVALID_REGION("Invalid region", ServerField.REGION),
+    INVALID_CPU("Invalid CPU core numbers", ServerField.CPU_CORES),
+    INVALID_RAM("Invalid RAM", ServerField.RAM_GB),
+    INVALID_OS("OS type is Invalid", ServerField.OS_TYPE),
+    GPU_TYPE_MISSING("GPU type must be specified when GPU is enabled",
+            ServerField.GPU_ENABLED, ServerField.GPU_TYPE),
+    INVALID_AUTO_SCALING("Auto Scalling can't be implemented",
+            ServerField.AUTO_SCALING, ServerField.MIN_INSTANCE, ServerField.MAX_INSTANCE),
+    INVALID_BACKUP_FREQUENCY("Backup Frequency should be greater than 0",
+            ServerField.BACKUP_ENABLED, ServerField.BACKUP_FREQUENCY);
+
+    static final int ALL_RULES = (1 << values().length) - 1;
+
+    private final String message;
+    private final int fieldMask;
+
+    ValidationError(String message, ServerField... fields) {
+        this.message = message;
+        int mask = 0;
+        for (ServerField field : fields) {
+            mask |= field.bit();
+        }
+        this.fieldMask = mask;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public int bit() {
+        return 1 << ordinal();
+    }
+
+    // Rules that read any of the given fields
+    public static int rulesAffectedBy(int changedFields) {
+        int rules = 0;
+        for (ValidationError error : values()) {
+            if ((error.fieldMask & changedFields) != 0) {
+                rules |= error.bit();
+            }
+        }
+        return rules;
+    }
+
+    public static EnumSet<ValidationError> fromMask(int mask) {
+        EnumSet<ValidationError> errors = EnumSet.noneOf(ValidationError.class);
+        for (ValidationError error : values()) {
+            if ((mask & error.bit()) != 0) {
+                errors.add(error);
+            }
+        }
+        return errors;
+    }
+}
+
+// Shared pool for the repeated string fields (region, OS, GPU type, security groups)
+// so millions of servers reference one copy of each distinct value.
+// Bounded: once full, new values are returned unpooled instead of growing forever
+final class StringPool {
+
+    static final int MAX_POOLED = 16_384;
+
+    private static final ConcurrentHashMap<String, String> POOL = new ConcurrentHashMap<>();
+
+    private StringPool() {
+    }
+
+    public static String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String existing = POOL.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        if (POOL.size() >= MAX_POOLED) {
+            return value;
+        }
+        existing = POOL.putIfAbsent(value, value);
+        return existing == null ? value : existing;
+    }
+
+    public static int size() {
+        return POOL.size();
+    }
+}
+
+// Known security groups: each name gets a bit (max 64) and the ports it opens.
+// Only well-known groups (and any registered explicitly) get a bit; other
+// names stay as names in a SecurityGroupSet, so building a server never
+// uses up the registry.
+final class SecurityGroupRegistry {
+
+    private static final int MAX_GROUPS = Long.SIZE;
+
+    private static final ConcurrentHashMap<String, Integer> BITS = new ConcurrentHashMap<>();
+    private static final String[] NAMES = new String[MAX_GROUPS];
+    private static final int[][] PORTS = new int[MAX_GROUPS][];
+    // Published last, so readers below count always see a group's name and ports
+    private static volatile int count;
+
+    static {
+        register("ssh", 22);
+        register("http", 80);
+        register("https", 443);
+        register("rdp", 3389);
+        register("mysql", 3306);
+        register("postgres", 5432);
+        register("redis", 6379);
+    }
+
+    private SecurityGroupRegistry() {
+    }
+
+    public static synchronized int register(String name, int... ports) {
+        String key = normalize(name);
+        Integer existing = BITS.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        int bit = count;
+        if (bit == MAX_GROUPS) {
+            throw new IllegalArgumentException("Too many security groups, can't register " + name);
+        }
+        NAMES[bit] = key;
+        PORTS[bit] = ports.clone();
+        BITS.put(key, bit);
+        count = bit + 1;
+        return bit;
+    }
+
+    static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Bit of a registered group, or -1; never registers
+    public static int bitOf(String name) {
+        Integer bit = BITS.get(normalize(name));
+        return bit == null ? -1 : bit;
+    }
+
+    public static String nameOf(int bit) {
+        return NAMES[bit];
+    }
+
+    // Groups (as a bitmask) that open the given port
+    public static long groupsExposing(int port) {
+        long mask = 0;
+        int groups = count;
+        for (int bit = 0; bit < groups; bit++) {
+            for (int p : PORTS[bit]) {
+                if (p == port) {
+                    mask |= 1L << bit;
+                }
+            }
+        }
+        return mask;
+    }
+}
+
+// Immutable set of security groups: registered groups as a 64-bit mask,
+// any other names as a sorted array beside it (a purely numeric name opens
+// that port). Sets of registered groups only are interned per mask.
+final class SecurityGroupSet {
+
+    private static final String[] NO_NAMES = new String[0];
+    private static final ConcurrentHashMap<Long, SecurityGroupSet> BY_MASK = new ConcurrentHashMap<>();
+    // Parsed strings are cached up to this many; beyond that they are parsed each time
+    private static final int MAX_CACHED_TEXTS = 4096;
+    private static final ConcurrentHashMap<String, SecurityGroupSet> BY_TEXT = new ConcurrentHashMap<>();
+
+    static final SecurityGroupSet EMPTY = of(0L);
+
+    private final long mask;
+    private final String[] others;
+
+    private SecurityGroupSet(long mask, String[] others) {
+        this.mask = mask;
+        this.others = others;
+    }
+
+    public static SecurityGroupSet of(long mask) {
+        return BY_MASK.computeIfAbsent(mask, m -> new SecurityGroupSet(m, NO_NAMES));
+    }
+
+    // Parses "ssh,http,https"; never registers names, common strings are cached
+    public static SecurityGroupSet parse(String groups) {
+        if (groups == null || groups.isEmpty()) {
+            return EMPTY;
+        }
+        SecurityGroupSet cached = BY_TEXT.get(groups);
+        if (cached != null) {
+            return cached;
+        }
+        long mask = 0;
+        TreeSet<String> others = null;
+        for (String name : groups.split(",")) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            int bit = SecurityGroupRegistry.bitOf(name);
+            if (bit >= 0) {
+                mask |= 1L << bit;
+            } else {
+                if (others == null) {
+                    others = new TreeSet<>();
+                }
+                others.add(SecurityGroupRegistry.normalize(name));
+            }
+        }
+        SecurityGroupSet set = others == null ? of(mask) : new SecurityGroupSet(mask, others.toArray(NO_NAMES));
+        if (BY_TEXT.size() < MAX_CACHED_TEXTS) {
+            BY_TEXT.putIfAbsent(groups, set);
+        }
+        return set;
+    }
+
+    public long mask() {
+        return mask;
+    }
+
+    // Groups without a registry bit, sorted
+    public List<String> otherGroups() {
+        return Arrays.asList(others.clone());
+    }
+
+    public boolean contains(String group) {
+        int bit = SecurityGroupRegistry.bitOf(group);
+        if (bit >= 0) {
+            return (mask & (1L << bit)) != 0;
+        }
+        return Arrays.binarySearch(others, SecurityGroupRegistry.normalize(group)) >= 0;
+    }
+
+    public boolean exposesPort(int port) {
+        return (mask & SecurityGroupRegistry.groupsExposing(port)) != 0
+                || (others.length > 0 && Arrays.binarySearch(others, Integer.toString(port)) >= 0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SecurityGroupSet)) {
+            return false;
+        }
+        SecurityGroupSet other = (SecurityGroupSet) o;
+        return mask == other.mask && Arrays.equals(others, other.others);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(mask) * 31 + Arrays.hashCode(others);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (long m = mask; m != 0; m &= m - 1) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(SecurityGroupRegistry.nameOf(Long.numberOfTrailingZeros(m)));
+        }
+        for (String name : others) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+}
+
+// Hash-consing table: returns one canonical instance per distinct configuration
+// Owned by the caller (e.g. a planning run) so it is released with it
+class CloudServerInterner {
+
+    private final ConcurrentHashMap<CloudServer, CloudServer> servers = new ConcurrentHashMap<>();
+
+    public CloudServer intern(CloudServer server) {
+        CloudServer existing = servers.putIfAbsent(server, server);
+        return existing == null ? server : existing;
+    }
+
+    public int size() {
+        return servers.size();
+    }
+}
+
 // Represents an immutable Cloud Server configuration
 class CloudServer {
 
@@ -88,24 +446,29 @@ class CloudServer {
     private final int backupFrequency;
 
     private final String securityGroups;
+    private final SecurityGroupSet securityGroupSet;
     private final boolean monitoringEnabled;
 
+    // Cached structural hash (0 = not computed yet)
+    private int hash;
+
     // Private constructor that accepts Builder instance
     // Ensures object creation only via Builder
     CloudServer(CloudBuilder builder) {
-        this.region = builder.region;
+        this.region = StringPool.intern(builder.region);
         this.cpuCores = builder.cpuCores;
         this.ramGB = builder.ramGB;
-        this.osType = builder.osType;
+        this.osType = StringPool.intern(builder.osType);
         this.gpuEnable = builder.gpuEnable;
-        this.gpuType = builder.gpuType;
+        this.gpuType = StringPool.intern(builder.gpuType);
         this.autoScalling = builder.autoScalling;
         this.minInstance = builder.minInstance;
         this.maxInstance = builder.maxInstance;
         this.loadBalancerEnabled = builder.loadBalancerEnabled;
         this.backupEnabled = builder.backupEnabled;
         this.backupFrequency = builder.backupFrequency;
-        this.securityGroups = builder.securityGroups;
+        this.securityGroups = StringPool.intern(builder.securityGroups);
+        this.securityGroupSet = SecurityGroupSet.parse(this.securityGroups);
         this.monitoringEnabled = builder.monitoringEnabled;
     }
 
@@ -162,10 +525,103 @@ class CloudServer {
         return securityGroups;
     }
 
+    // Security groups parsed at build time (shared instance, no re-parsing)
+    public SecurityGroupSet getSecurityGroupSet() {
+        return securityGroupSet;
+    }
+
     public boolean GetMonitoringEnablled() {
         return monitoringEnabled;
     }
 
+    // Structural equality, used to intern identical configurations
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CloudServer)) {
+            return false;
+        }
+        CloudServer other = (CloudServer) o;
+        return cpuCores == other.cpuCores &&
+                ramGB == other.ramGB &&
+                gpuEnable == other.gpuEnable &&
+                autoScalling == other.autoScalling &&
+                minInstance == other.minInstance &&
+                maxInstance == other.maxInstance &&
+                loadBalancerEnabled == other.loadBalancerEnabled &&
+                backupEnabled == other.backupEnabled &&
+                backupFrequency == other.backupFrequency &&
+                monitoringEnabled == other.monitoringEnabled &&
+                Objects.equals(region, other.region) &&
+                Objects.equals(osType, other.osType) &&
+                Objects.equals(gpuType, other.gpuType) &&
+                Objects.equals(securityGroups, other.securityGroups);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = Objects.hash(region, cpuCores, ramGB, osType, gpuEnable, gpuType,
+                    autoScalling, minInstance, maxInstance, loadBalancerEnabled,
+                    backupEnabled, backupFrequency, securityGroups, monitoringEnabled);
+            hash = h;
+        }
+        return h;
+    }
+
+    // Builder pre-filled with this configuration (already valid, so no checks run)
+    public CloudBuilder toBuilder() {
+        return CloudBuilder.unchecked(region, cpuCores, ramGB, osType).copyOptional(this);
+    }
+
+    public ServerChangeSet diff(CloudServer updated) {
+        return new ServerChangeSet(this, updated, diffMask(this, updated));
+    }
+
+    // Bitmask of ServerFields that differ between a and b
+    static int diffMask(CloudServer a, CloudServer b) {
+        int mask = 0;
+        if (!Objects.equals(a.region, b.region)) mask |= ServerField.REGION.bit();
+        if (a.cpuCores != b.cpuCores) mask |= ServerField.CPU_CORES.bit();
+        if (a.ramGB != b.ramGB) mask |= ServerField.RAM_GB.bit();
+        if (!Objects.equals(a.osType, b.osType)) mask |= ServerField.OS_TYPE.bit();
+        if (a.gpuEnable != b.gpuEnable) mask |= ServerField.GPU_ENABLED.bit();
+        if (!Objects.equals(a.gpuType, b.gpuType)) mask |= ServerField.GPU_TYPE.bit();
+        if (a.autoScalling != b.autoScalling) mask |= ServerField.AUTO_SCALING.bit();
+        if (a.minInstance != b.minInstance) mask |= ServerField.MIN_INSTANCE.bit();
+        if (a.maxInstance != b.maxInstance) mask |= ServerField.MAX_INSTANCE.bit();
+        if (a.loadBalancerEnabled != b.loadBalancerEnabled) mask |= ServerField.LOAD_BALANCER.bit();
+        if (a.backupEnabled != b.backupEnabled) mask |= ServerField.BACKUP_ENABLED.bit();
+        if (a.backupFrequency != b.backupFrequency) mask |= ServerField.BACKUP_FREQUENCY.bit();
+        if (!Objects.equals(a.securityGroups, b.securityGroups)) mask |= ServerField.SECURITY_GROUPS.bit();
+        if (a.monitoringEnabled != b.monitoringEnabled) mask |= ServerField.MONITORING.bit();
+        return mask;
+    }
+
+    // Value of a single field, for change reports
+    Object get(ServerField field) {
+        switch (field) {
+            case REGION: return region;
+            case CPU_CORES: return cpuCores;
+            case RAM_GB: return ramGB;
+            case OS_TYPE: return osType;
+            case GPU_ENABLED: return gpuEnable;
+            case GPU_TYPE: return gpuType;
+            case AUTO_SCALING: return autoScalling;
+            case MIN_INSTANCE: return minInstance;
+            case MAX_INSTANCE: return maxInstance;
+            case LOAD_BALANCER: return loadBalancerEnabled;
+            case BACKUP_ENABLED: return backupEnabled;
+            case BACKUP_FREQUENCY: return backupFrequency;
+            case SECURITY_GROUPS: return securityGroups;
+            case MONITORING: return monitoringEnabled;
+            default: throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
     // Overriding toString() for easy debugging and logging
     @Override
     public String toString() {
@@ -214,27 +670,28 @@ class CloudServer {
 
         // Constructor enforces mandatory fields
         public CloudBuilder(String region, int cpuCores, int ramGB, String osType) {
+            this(region, cpuCores, ramGB, osType, false);
 
             // Validation of required parameters
-            if (region == null || region.isEmpty()) {
-                throw new IllegalArgumentException("Invalid region");
-            }
-            if (cpuCores <= 0) {
-                throw new IllegalArgumentException("Invalid CPU core numbers");
-            }
-            if (ramGB <= 0) {
-                throw new IllegalArgumentException("Invalid RAM");
-            }
-            if (osType == null || osType.isEmpty()) {
-                throw new IllegalArgumentException("OS type is Invalid");
+            int errors = validateMandatory(ValidationError.ALL_RULES);
+            if (errors != 0) {
+                throw new IllegalArgumentException(
+                        ValidationError.values()[Integer.numberOfTrailingZeros(errors)].getMessage());
             }
+        }
 
+        private CloudBuilder(String region, int cpuCores, int ramGB, String osType, boolean unchecked) {
             this.region = region;
             this.cpuCores = cpuCores;
             this.ramGB = ramGB;
             this.osType = osType;
         }
 
+        // Builder that defers mandatory checks to validate(), for bulk planning
+        public static CloudBuilder unchecked(String region, int cpuCores, int ramGB, String osType) {
+            return new CloudBuilder(region, cpuCores, ramGB, osType, true);
+        }
+
         // Fluent setter methods for optional configuration
         public CloudBuilder setGPUEnabled(boolean gpuEnable) {
             this.gpuEnable = gpuEnable;
@@ -288,72 +745,1507 @@ class CloudServer {
 
         // Centralized validation before object creation
         public CloudServer build() {
+            int errors = validate();
+            if (errors != 0) {
+                throw new IllegalArgumentException(
+                        ValidationError.values()[Integer.numberOfTrailingZeros(errors)].getMessage());
+            }
+
+            // Create immutable CloudServer object
+            return new CloudServer(this);
+        }
+
+        // Checks every rule and returns the broken ones as a ValidationError bitmask (0 = valid)
+        public int validate() {
+            return validate(ValidationError.ALL_RULES);
+        }
+
+        // Checks only the rules in the given ValidationError bitmask
+        int validate(int rules) {
+            int errors = validateMandatory(rules);
 
             // GPU constraint validation
-            if (gpuEnable && (gpuType == null || gpuType.isEmpty())) {
-                throw new IllegalArgumentException(
-                        "GPU type must be specified when GPU is enabled");
+            if (isChecked(rules, ValidationError.GPU_TYPE_MISSING) &&
+                    gpuEnable && (gpuType == null || gpuType.isEmpty())) {
+                errors |= ValidationError.GPU_TYPE_MISSING.bit();
             }
 
             // Auto-scaling validation
-            if (autoScalling) {
+            if (isChecked(rules, ValidationError.INVALID_AUTO_SCALING) && autoScalling) {
                 if (minInstance < 1 || maxInstance < minInstance) {
-                    throw new IllegalArgumentException(
-                            "Auto Scalling can't be implemented");
+                    errors |= ValidationError.INVALID_AUTO_SCALING.bit();
                 }
             }
 
             // Backup validation
-            if (backupEnabled && backupFrequency <= 0) {
+            if (isChecked(rules, ValidationError.INVALID_BACKUP_FREQUENCY) &&
+                    backupEnabled && backupFrequency <= 0) {
+                errors |= ValidationError.INVALID_BACKUP_FREQUENCY.bit();
+            }
+            return errors;
+        }
+
+        private int validateMandatory(int rules) {
+            int errors = 0;
+            if (isChecked(rules, ValidationError.INVALID_REGION) && (region == null || region.isEmpty())) {
+                errors |= ValidationError.INVALID_REGION.bit();
+            }
+            if (isChecked(rules, ValidationError.INVALID_CPU) && cpuCores <= 0) {
+                errors |= ValidationError.INVALID_CPU.bit();
+            }
+            if (isChecked(rules, ValidationError.INVALID_RAM) && ramGB <= 0) {
+                errors |= ValidationError.INVALID_RAM.bit();
+            }
+            if (isChecked(rules, ValidationError.INVALID_OS) && (osType == null || osType.isEmpty())) {
+                errors |= ValidationError.INVALID_OS.bit();
+            }
+            return errors;
+        }
+
+        private static boolean isChecked(int rules, ValidationError rule) {
+            return (rules & rule.bit()) != 0;
+        }
+
+        // Incremental rebuild: diffs against the server this builder was derived
+        // from and re-validates only the rules reading a changed field.
+        // Returns the change set; an unchanged config keeps the base instance.
+        public ServerChangeSet rebuild(CloudServer base) {
+            CloudServer candidate = new CloudServer(this);
+            int changed = CloudServer.diffMask(base, candidate);
+            if (changed == 0) {
+                return new ServerChangeSet(base, base, 0);
+            }
+            int errors = validate(ValidationError.rulesAffectedBy(changed));
+            if (errors != 0) {
                 throw new IllegalArgumentException(
-                        "Backup Frequency should be greater than 0");
+                        ValidationError.values()[Integer.numberOfTrailingZeros(errors)].getMessage());
             }
+            return new ServerChangeSet(base, candidate, changed);
+        }
 
-            // Create immutable CloudServer object
-            return new CloudServer(this);
+        // Builds and returns the canonical shared instance for this configuration
+        public CloudServer build(CloudServerInterner interner) {
+            return interner.intern(build());
+        }
+
+        // Copies optional fields from an already validated server
+        private CloudBuilder copyOptional(CloudServer from) {
+            this.gpuEnable = from.gpuEnable;
+            this.gpuType = from.gpuType;
+            this.autoScalling = from.autoScalling;
+            this.minInstance = from.minInstance;
+            this.maxInstance = from.maxInstance;
+            this.loadBalancerEnabled = from.loadBalancerEnabled;
+            this.backupEnabled = from.backupEnabled;
+            this.backupFrequency = from.backupFrequency;
+            this.securityGroups = from.securityGroups;
+            this.monitoringEnabled = from.monitoringEnabled;
+            return this;
+        }
+    }
+
+    // ---------------- TEMPLATE ----------------
+    // A validated base server from which variants are derived.
+    // Optional settings are already known to be valid, so a variant only
+    // re-checks the mandatory field it changes (no GPU/scaling/backup rules).
+    public static class CloudTemplate {
+
+        private final CloudServer base;
+        private final CloudServerInterner interner;
+
+        public CloudTemplate(CloudServer base, CloudServerInterner interner) {
+            if (base == null || interner == null) {
+                throw new IllegalArgumentException("Template needs a base server and an interner");
+            }
+            this.base = interner.intern(base);
+            this.interner = interner;
+        }
+
+        public CloudServer getBase() {
+            return base;
+        }
+
+        public CloudServer withRegion(String region) {
+            return derive(new CloudBuilder(region, base.cpuCores, base.ramGB, base.osType));
+        }
+
+        public CloudServer withSize(int cpuCores, int ramGB) {
+            return derive(new CloudBuilder(base.region, cpuCores, ramGB, base.osType));
+        }
+
+        public CloudServer withOsType(String osType) {
+            return derive(new CloudBuilder(base.region, base.cpuCores, base.ramGB, osType));
+        }
+
+        private CloudServer derive(CloudBuilder builder) {
+            return interner.intern(new CloudServer(builder.copyOptional(base)));
         }
     }
 }
 
-// ---------------- MAIN CLASS ----------------
-public class Main {
-    public static void main(String[] args) {
+// ---------------- CHANGE SET ----------------
+// Delta between two configurations of the same server
+class ServerChangeSet {
+    private final CloudServer before;
+    private final CloudServer after;
+    private final int changedMask;
 
-        // ✅ Valid CloudServer configuration using Builder
-        CloudServer server = new CloudServer.CloudBuilder(
-                "ap-south-1",   // region
-                8,              // CPU cores
-                32,             // RAM in GB
-                "Linux"         // OS type
-        )
-        .setGPUEnabled(true)
-        .setGPUType("NVIDIA A100")
-        .setAutoScalling(true)
-        .setMinInstance(2)
-        .setMaxInstance(10)
-        .setLoadBalancer(true)
-        .setBackupEnable(true)
-        .setBackFrequency(24)           // Backup every 24 hours
-        .setSecurityGroups("ssh,http,https")
-        .setMonitoringEnabled(true)
-        .build();
+    ServerChangeSet(CloudServer before, CloudServer after, int changedMask) {
+        this.before = before;
+        this.after = after;
+        this.changedMask = changedMask;
+    }
 
-        // Print final server configuration
-        System.out.println(server);
+    public CloudServer getBefore() { return before; }
+    public CloudServer getAfter() { return after; }
 
-        // ❌ Invalid configuration example (GPU enabled but type missing)
-        try {
-            CloudServer invalidServer = new CloudServer.CloudBuilder(
-                    "us-east-1",
-                    4,
-                    16,
-                    "Ubuntu"
-            )
-            .setGPUEnabled(true)   // GPU enabled
-            // GPU type not set → validation failure
-            .build();
-        } catch (IllegalArgumentException e) {
-            System.out.println("Error creating server: " + e.getMessage());
+    public boolean isEmpty() {
+        return changedMask == 0;
+    }
+
+    public boolean changed(ServerField field) {
+        return (changedMask & field.bit()) != 0;
+    }
+
+    public EnumSet<ServerField> getChangedFields() {
+        return ServerField.fromMask(changedMask);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ServerChangeSet{");
+        boolean first = true;
+        for (ServerField field : getChangedFields()) {
+            if (!first) {
+                sb.append(", ");
+            }
+            sb.append(field).append(": ").append(before.get(field)).append(" -> ").append(after.get(field));
+            first = false;
+        }
+        return sb.append('}').toString();
+    }
+}
+
+// ---------------- SECURITY GROUP INDEX ----------------
+// Inverted index over a fleet: one bitmap of server positions per security
+// group, so a port or group query is a few bitmap ORs/ANDs regardless of
+// fleet size. Positions refer to the list the index was built from.
+class SecurityGroupIndex {
+
+    private final List<CloudServer> servers;
+    private final BitSet[] byGroup = new BitSet[Long.SIZE];
+    // Groups without a registry bit, by name
+    private final Map<String, BitSet> byOtherGroup = new HashMap<>();
+
+    public SecurityGroupIndex(List<CloudServer> servers) {
+        this.servers = servers;
+        for (int i = 0; i < servers.size(); i++) {
+            SecurityGroupSet groups = servers.get(i).getSecurityGroupSet();
+            for (long m = groups.mask(); m != 0; m &= m - 1) {
+                int bit = Long.numberOfTrailingZeros(m);
+                if (byGroup[bit] == null) {
+                    byGroup[bit] = new BitSet(servers.size());
+                }
+                byGroup[bit].set(i);
+            }
+            for (String name : groups.otherGroups()) {
+                byOtherGroup.computeIfAbsent(name, n -> new BitSet(servers.size())).set(i);
+            }
+        }
+    }
+
+    public BitSet serversExposingPort(int port) {
+        BitSet result = union(SecurityGroupRegistry.groupsExposing(port));
+        BitSet numeric = byOtherGroup.get(Integer.toString(port));
+        if (numeric != null) {
+            result.or(numeric);
+        }
+        return result;
+    }
+
+    public BitSet serversWithGroup(String group) {
+        BitSet members = members(group);
+        return members == null ? new BitSet() : (BitSet) members.clone();
+    }
+
+    // Servers that have every one of the given groups
+    public BitSet serversWithAll(String... groups) {
+        BitSet result = new BitSet(servers.size());
+        result.set(0, servers.size());
+        for (String group : groups) {
+            BitSet members = members(group);
+            if (members == null) {
+                return new BitSet();
+            }
+            result.and(members);
+        }
+        return result;
+    }
+
+    public CloudServer get(int position) {
+        return servers.get(position);
+    }
+
+    private BitSet members(String group) {
+        int bit = SecurityGroupRegistry.bitOf(group);
+        return bit >= 0 ? byGroup[bit] : byOtherGroup.get(SecurityGroupRegistry.normalize(group));
+    }
+
+    private BitSet union(long groups) {
+        BitSet result = new BitSet(servers.size());
+        for (long m = groups; m != 0; m &= m - 1) {
+            BitSet members = byGroup[Long.numberOfTrailingZeros(m)];
+            if (members != null) {
+                result.or(members);
+            }
+        }
+        return result;
+    }
+}
+
+// ---------------- BULK PLANNER ----------------
+// Validates a whole fleet plan in parallel on a ForkJoinPool.
+// Each config yields either a CloudServer or a bitmask of every rule it
+// breaks - no exception (and no stack trace) per invalid config.
+class FleetPlanner {
+
+    private static final int SPLIT_THRESHOLD = 2048;
+
+    private final ForkJoinPool pool;
+
+    public FleetPlanner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public FleetPlan plan(List<CloudServer.CloudBuilder> configs) {
+        CloudServer.CloudBuilder[] input = configs.toArray(new CloudServer.CloudBuilder[0]);
+        CloudServer[] servers = new CloudServer[input.length];
+        int[] errors = new int[input.length];
+
+        long start = System.nanoTime();
+        pool.invoke(new ValidateRange(input, servers, errors, 0, input.length));
+        long elapsed = System.nanoTime() - start;
+
+        return new FleetPlan(servers, errors, elapsed);
+    }
+
+    private static final class ValidateRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CloudServer.CloudBuilder[] input;
+        private final CloudServer[] servers;
+        private final int[] errors;
+        private final int from;
+        private final int to;
+
+        ValidateRange(CloudServer.CloudBuilder[] input, CloudServer[] servers, int[] errors, int from, int to) {
+            this.input = input;
+            this.servers = servers;
+            this.errors = errors;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    int mask = input[i].validate();
+                    errors[i] = mask;
+                    if (mask == 0) {
+                        servers[i] = new CloudServer(input[i]);
+                    }
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ValidateRange(input, servers, errors, from, mid),
+                    new ValidateRange(input, servers, errors, mid, to));
+        }
+    }
+}
+
+// Outcome of a bulk validation, indexed like the submitted configs
+class FleetPlan {
+    private final CloudServer[] servers;
+    private final int[] errors;
+    private final long elapsedNanos;
+    private final int validCount;
+
+    FleetPlan(CloudServer[] servers, int[] errors, long elapsedNanos) {
+        this.servers = servers;
+        this.errors = errors;
+        this.elapsedNanos = elapsedNanos;
+        int valid = 0;
+        for (int mask : errors) {
+            if (mask == 0) {
+                valid++;
+            }
+        }
+        this.validCount = valid;
+    }
+
+    public int size() {
+        return servers.length;
+    }
+
+    public boolean isValid(int index) {
+        return errors[index] == 0;
+    }
+
+    // Null when the config at index is invalid
+    public CloudServer getServer(int index) {
+        return servers[index];
+    }
+
+    public EnumSet<ValidationError> getErrors(int index) {
+        return ValidationError.fromMask(errors[index]);
+    }
+
+    public List<CloudServer> validServers() {
+        List<CloudServer> result = new ArrayList<>(validCount);
+        for (CloudServer server : servers) {
+            if (server != null) {
+                result.add(server);
+            }
+        }
+        return result;
+    }
+
+    public int getValidCount() {
+        return validCount;
+    }
+
+    public int getInvalidCount() {
+        return servers.length - validCount;
+    }
+
+    public long configsPerSecond() {
+        return elapsedNanos == 0 ? 0 : (long) (servers.length * 1e9 / elapsedNanos);
+    }
+}
+
+// ---------------- PLACEMENT ENGINE ----------------
+// Host model available in a region (every host in the region is identical)
+class HostType {
+    private final int cpuCores;
+    private final int ramGB;
+    private final int gpuSlots;
+    private final int maxHosts;
+
+    public HostType(int cpuCores, int ramGB, int gpuSlots, int maxHosts) {
+        if (cpuCores <= 0 || ramGB <= 0 || gpuSlots < 0 || maxHosts <= 0) {
+            throw new IllegalArgumentException("Invalid host type");
+        }
+        this.cpuCores = cpuCores;
+        this.ramGB = ramGB;
+        this.gpuSlots = gpuSlots;
+        this.maxHosts = maxHosts;
+    }
+
+    public int getCpuCores() { return cpuCores; }
+    public int getRamGB() { return ramGB; }
+    public int getGpuSlots() { return gpuSlots; }
+    public int getMaxHosts() { return maxHosts; }
+}
+
+// Packs servers onto hosts, each region independently and in parallel.
+// A server needs minInstance instances when auto-scaling (else 1), each
+// taking its cores, RAM and one GPU slot if GPU is enabled.
+// Best-fit decreasing: instances sorted by their largest share of a host go
+// to the open host with the fewest free cores that still has room for them.
+// Open hosts are indexed by free cores so that host is found quickly.
+// Instances larger than a host are reported unplaced before sorting.
+// Then a bounded local search tries to empty the least-filled hosts: each
+// instance moves to any other host with room, or makes room on a host that
+// has the cores but lacks RAM by swapping one of its instances with a
+// same-core, lower-RAM instance elsewhere. A host that empties is released;
+// otherwise its moves are undone.
+class PlacementEngine {
+
+    private static final int LOCAL_SEARCH_ATTEMPTS = 1024;
+    // Swap candidates examined per instance before giving up on it
+    private static final int SWAP_PROBES = 20_000;
+
+    private final ForkJoinPool pool;
+
+    public PlacementEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public Map<String, RegionPlacement> place(List<CloudServer> servers, Map<String, HostType> inventory) {
+        Map<String, List<CloudServer>> byRegion = new LinkedHashMap<>();
+        for (CloudServer server : servers) {
+            byRegion.computeIfAbsent(server.getRegion(), r -> new ArrayList<>()).add(server);
+        }
+
+        Map<String, ForkJoinTask<RegionPlacement>> tasks = new LinkedHashMap<>();
+        for (Map.Entry<String, List<CloudServer>> entry : byRegion.entrySet()) {
+            HostType hostType = inventory.get(entry.getKey());
+            if (hostType == null) {
+                throw new IllegalArgumentException("No host inventory for region " + entry.getKey());
+            }
+            tasks.put(entry.getKey(), pool.submit(
+                    () -> new RegionPacker(entry.getKey(), entry.getValue(), hostType).pack()));
+        }
+
+        Map<String, RegionPlacement> result = new LinkedHashMap<>();
+        for (Map.Entry<String, ForkJoinTask<RegionPlacement>> entry : tasks.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().join());
+        }
+        return result;
+    }
+
+    private static final class RegionPacker {
+        private final String region;
+        private final List<CloudServer> servers;
+        private final HostType hostType;
+
+        // One entry per instance
+        private int[] cpu;
+        private int[] ram;
+        private int[] gpu;
+        private int[] owner;
+        private int[] hostOf;
+
+        // Per host free capacity and instance count
+        private int[] freeCpu;
+        private int[] freeRam;
+        private int[] freeGpu;
+        private int[] load;
+        private int hosts;
+
+        // Instances on each host (first load[h] entries) and each instance's slot there
+        private int[][] members;
+        private int[] posInHost;
+        // Instances grouped by core count, for swap candidates
+        private int[][] byCores;
+
+        // Local search moves of the current attempt: instance, previous host
+        private int[] moveLog = new int[64];
+        private int moves;
+
+        // Open hosts bucketed by free cores: buckets[c] holds hosts with c free cores
+        private int[][] buckets;
+        private int[] bucketSize;
+        private int[] posInBucket;
+
+        RegionPacker(String region, List<CloudServer> servers, HostType hostType) {
+            this.region = region;
+            this.servers = servers;
+            this.hostType = hostType;
+        }
+
+        RegionPlacement pack() {
+            long start = System.nanoTime();
+            expandInstances();
+
+            int n = cpu.length;
+            int maxHosts = Math.min(hostType.getMaxHosts(), n);
+            freeCpu = new int[maxHosts];
+            freeRam = new int[maxHosts];
+            freeGpu = new int[maxHosts];
+            load = new int[maxHosts];
+            members = new int[maxHosts][];
+            posInHost = new int[n];
+            posInBucket = new int[maxHosts];
+            buckets = new int[hostType.getCpuCores() + 1][];
+            bucketSize = new int[hostType.getCpuCores() + 1];
+            hostOf = new int[n];
+            Arrays.fill(hostOf, -1);
+
+            // Sort by largest share of a host, decreasing (key in high bits, index in low bits);
+            // instances that fit no host are left out, so every share is at most 1
+            long[] order = new long[n];
+            int fitting = 0;
+            int unplaced = 0;
+            for (int i = 0; i < n; i++) {
+                if (!fits(i)) {
+                    unplaced++;
+                    continue;
+                }
+                double share = Math.max((double) cpu[i] / hostType.getCpuCores(),
+                        (double) ram[i] / hostType.getRamGB());
+                order[fitting++] = ((long) (share * 1_000_000) << 32) | i;
+            }
+            Arrays.sort(order, 0, fitting);
+
+            for (int k = fitting - 1; k >= 0; k--) {
+                int i = (int) order[k];
+                int host = findHost(i);
+                if (host < 0) {
+                    if (hosts == maxHosts) {
+                        unplaced++;
+                        continue;
+                    }
+                    host = openHost();
+                }
+                assign(i, host);
+            }
+
+            int released = localSearch();
+            long elapsed = System.nanoTime() - start;
+            return new RegionPlacement(region, hosts - released, n - unplaced, unplaced,
+                    lowerBound(), released, elapsed);
+        }
+
+        private void expandInstances() {
+            int total = 0;
+            for (CloudServer s : servers) {
+                total += instances(s);
+            }
+            cpu = new int[total];
+            ram = new int[total];
+            gpu = new int[total];
+            owner = new int[total];
+            int k = 0;
+            for (int i = 0; i < servers.size(); i++) {
+                CloudServer s = servers.get(i);
+                for (int c = instances(s); c > 0; c--) {
+                    cpu[k] = s.getCPUCores();
+                    ram[k] = s.getRAMGB();
+                    gpu[k] = s.getGPUEnabled() ? 1 : 0;
+                    owner[k] = i;
+                    k++;
+                }
+            }
+        }
+
+        private int instances(CloudServer s) {
+            return s.getAutoScalling() ? Math.max(1, s.getMinInstance()) : 1;
+        }
+
+        private boolean fits(int i) {
+            return cpu[i] <= hostType.getCpuCores() &&
+                    ram[i] <= hostType.getRamGB() &&
+                    gpu[i] <= hostType.getGpuSlots();
+        }
+
+        // Tightest open host (by free cores) that has room for instance i
+        private int findHost(int i) {
+            return findHost(i, -1);
+        }
+
+        private int findHost(int i, int excluded) {
+            for (int c = cpu[i]; c < buckets.length; c++) {
+                for (int b = 0; b < bucketSize[c]; b++) {
+                    int h = buckets[c][b];
+                    if (h != excluded && freeRam[h] >= ram[i] && freeGpu[h] >= gpu[i]) {
+                        return h;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private int openHost() {
+            int h = hosts++;
+            freeCpu[h] = hostType.getCpuCores();
+            freeRam[h] = hostType.getRamGB();
+            freeGpu[h] = hostType.getGpuSlots();
+            addToBucket(h);
+            return h;
+        }
+
+        private void assign(int i, int h) {
+            removeFromBucket(h);
+            freeCpu[h] -= cpu[i];
+            freeRam[h] -= ram[i];
+            freeGpu[h] -= gpu[i];
+            if (members[h] == null) {
+                members[h] = new int[8];
+            } else if (load[h] == members[h].length) {
+                members[h] = Arrays.copyOf(members[h], load[h] * 2);
+            }
+            posInHost[i] = load[h];
+            members[h][load[h]++] = i;
+            hostOf[i] = h;
+            addToBucket(h);
+        }
+
+        private void unassign(int i) {
+            int h = hostOf[i];
+            removeFromBucket(h);
+            freeCpu[h] += cpu[i];
+            freeRam[h] += ram[i];
+            freeGpu[h] += gpu[i];
+            int last = members[h][--load[h]];
+            members[h][posInHost[i]] = last;
+            posInHost[last] = posInHost[i];
+            hostOf[i] = -1;
+            addToBucket(h);
+        }
+
+        // Unassigns first and assigns after, so no host is over capacity on the way
+        private void swapHosts(int x, int y) {
+            int hx = hostOf[x];
+            int hy = hostOf[y];
+            logMove(x);
+            logMove(y);
+            unassign(x);
+            unassign(y);
+            assign(x, hy);
+            assign(y, hx);
+        }
+
+        private void move(int i, int target) {
+            logMove(i);
+            unassign(i);
+            assign(i, target);
+        }
+
+        private void logMove(int i) {
+            if (moves * 2 == moveLog.length) {
+                moveLog = Arrays.copyOf(moveLog, moveLog.length * 2);
+            }
+            moveLog[moves * 2] = i;
+            moveLog[moves * 2 + 1] = hostOf[i];
+            moves++;
+        }
+
+        // Puts every logged instance back; earliest log entry holds its original host
+        private void undoMoves() {
+            for (int m = moves - 1; m >= 0; m--) {
+                int i = moveLog[m * 2];
+                if (hostOf[i] >= 0) {
+                    unassign(i);
+                }
+            }
+            for (int m = 0; m < moves; m++) {
+                int i = moveLog[m * 2];
+                if (hostOf[i] < 0) {
+                    assign(i, moveLog[m * 2 + 1]);
+                }
+            }
+            moves = 0;
+        }
+
+        // Tries to empty the least-filled hosts; returns how many were released
+        private int localSearch() {
+            if (hosts < 2) {
+                return 0;
+            }
+            indexByCores();
+            // Least-filled first, by used core share plus used RAM share
+            long[] byFill = new long[hosts];
+            for (int h = 0; h < hosts; h++) {
+                double fill = 2 - (double) freeCpu[h] / hostType.getCpuCores() -
+                        (double) freeRam[h] / hostType.getRamGB();
+                byFill[h] = ((long) (fill * 1_000_000) << 32) | h;
+            }
+            Arrays.sort(byFill);
+
+            int released = 0;
+            int bound = lowerBound();
+            for (int k = 0; k < Math.min(LOCAL_SEARCH_ATTEMPTS, hosts - 1) && hosts - released > bound; k++) {
+                int h = (int) byFill[k];
+                moves = 0;
+                while (load[h] > 0 && relocate(members[h][load[h] - 1], h)) {
+                    // keep emptying h
+                }
+                if (load[h] == 0) {
+                    // A released host takes no more instances
+                    removeFromBucket(h);
+                    released++;
+                    moves = 0;
+                } else {
+                    undoMoves();
+                }
+            }
+            return released;
+        }
+
+        // Moves instance i off host h, directly or by swapping to make room
+        private boolean relocate(int i, int h) {
+            int target = findHost(i, h);
+            if (target >= 0) {
+                move(i, target);
+                return true;
+            }
+            int probes = SWAP_PROBES;
+            for (int c = cpu[i]; c < buckets.length; c++) {
+                for (int b = 0; b < bucketSize[c]; b++) {
+                    int t = buckets[c][b];
+                    if (t == h || freeGpu[t] < gpu[i]) {
+                        continue;
+                    }
+                    // RAM t lacks for i; swap out one of its instances for a smaller one
+                    int need = ram[i] - freeRam[t];
+                    for (int m = 0; m < load[t]; m++) {
+                        int x = members[t][m];
+                        int[] sameCores = byCores[cpu[x]];
+                        for (int y : sameCores) {
+                            if (ram[x] - ram[y] < need) {
+                                break;
+                            }
+                            if (--probes < 0) {
+                                return false;
+                            }
+                            int u = hostOf[y];
+                            int delta = ram[x] - ram[y];
+                            if (u == t || u == h || freeRam[u] < delta ||
+                                    freeGpu[u] < gpu[x] - gpu[y] ||
+                                    freeGpu[t] + gpu[x] - gpu[y] < gpu[i]) {
+                                continue;
+                            }
+                            swapHosts(x, y);
+                            move(i, t);
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        // Placed instances grouped by core count, smallest RAM first
+        private void indexByCores() {
+            int[] counts = new int[buckets.length];
+            long[] order = new long[cpu.length];
+            int placed = 0;
+            for (int i = 0; i < cpu.length; i++) {
+                if (hostOf[i] >= 0) {
+                    counts[cpu[i]]++;
+                    order[placed++] = ((long) ram[i] << 32) | i;
+                }
+            }
+            Arrays.sort(order, 0, placed);
+            byCores = new int[buckets.length][];
+            for (int c = 0; c < byCores.length; c++) {
+                byCores[c] = new int[counts[c]];
+                counts[c] = 0;
+            }
+            for (int k = 0; k < placed; k++) {
+                int i = (int) order[k];
+                byCores[cpu[i]][counts[cpu[i]]++] = i;
+            }
+        }
+
+        private void addToBucket(int h) {
+            int c = freeCpu[h];
+            if (buckets[c] == null) {
+                buckets[c] = new int[16];
+            } else if (bucketSize[c] == buckets[c].length) {
+                buckets[c] = Arrays.copyOf(buckets[c], bucketSize[c] * 2);
+            }
+            posInBucket[h] = bucketSize[c];
+            buckets[c][bucketSize[c]++] = h;
+        }
+
+        private void removeFromBucket(int h) {
+            int c = freeCpu[h];
+            int pos = posInBucket[h];
+            int last = buckets[c][--bucketSize[c]];
+            buckets[c][pos] = last;
+            posInBucket[last] = pos;
+        }
+
+        // No packing can use fewer hosts than this
+        private int lowerBound() {
+            long totalCpu = 0;
+            long totalRam = 0;
+            for (int i = 0; i < cpu.length; i++) {
+                if (hostOf[i] >= 0) {
+                    totalCpu += cpu[i];
+                    totalRam += ram[i];
+                }
+            }
+            return (int) Math.max(
+                    (totalCpu + hostType.getCpuCores() - 1) / hostType.getCpuCores(),
+                    (totalRam + hostType.getRamGB() - 1) / hostType.getRamGB());
+        }
+    }
+}
+
+// Result of packing one region
+class RegionPlacement {
+    private final String region;
+    private final int hostsUsed;
+    private final int placedInstances;
+    private final int unplacedInstances;
+    private final int lowerBound;
+    private final int releasedByLocalSearch;
+    private final long elapsedNanos;
+
+    RegionPlacement(String region, int hostsUsed, int placedInstances, int unplacedInstances,
+                    int lowerBound, int releasedByLocalSearch, long elapsedNanos) {
+        this.region = region;
+        this.hostsUsed = hostsUsed;
+        this.placedInstances = placedInstances;
+        this.unplacedInstances = unplacedInstances;
+        this.lowerBound = lowerBound;
+        this.releasedByLocalSearch = releasedByLocalSearch;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public String getRegion() { return region; }
+    public int getHostsUsed() { return hostsUsed; }
+    public int getPlacedInstances() { return placedInstances; }
+    public int getUnplacedInstances() { return unplacedInstances; }
+    public int getLowerBound() { return lowerBound; }
+    public int getReleasedByLocalSearch() { return releasedByLocalSearch; }
+
+    @Override
+    public String toString() {
+        return "RegionPlacement{" +
+                "region='" + region + '\'' +
+                ", hostsUsed=" + hostsUsed +
+                ", lowerBound=" + lowerBound +
+                ", placed=" + placedInstances +
+                ", unplaced=" + unplacedInstances +
+                ", releasedByLocalSearch=" + releasedByLocalSearch +
+                ", timeMs=" + elapsedNanos / 1_000_000 +
+                '}';
+    }
+}
+
+// ---------------- AUTOSCALING SIMULATOR ----------------
+// Scale-out / scale-in rules applied every step of a load trace
+class ScalingPolicy {
+    private final double scaleOutUtilization;
+    private final double scaleInUtilization;
+    private final int stepSize;
+    private final int cooldownSteps;
+
+    public ScalingPolicy(double scaleOutUtilization, double scaleInUtilization, int stepSize, int cooldownSteps) {
+        if (scaleInUtilization <= 0 || scaleOutUtilization <= scaleInUtilization) {
+            throw new IllegalArgumentException("Scale-in threshold must be below scale-out threshold");
+        }
+        if (stepSize <= 0 || cooldownSteps < 0) {
+            throw new IllegalArgumentException("Invalid step size or cooldown");
+        }
+        this.scaleOutUtilization = scaleOutUtilization;
+        this.scaleInUtilization = scaleInUtilization;
+        this.stepSize = stepSize;
+        this.cooldownSteps = cooldownSteps;
+    }
+
+    public double getScaleOutUtilization() { return scaleOutUtilization; }
+    public double getScaleInUtilization() { return scaleInUtilization; }
+    public int getStepSize() { return stepSize; }
+    public int getCooldownSteps() { return cooldownSteps; }
+
+    @Override
+    public String toString() {
+        return "ScalingPolicy{out>" + scaleOutUtilization +
+                ", in<" + scaleInUtilization +
+                ", step=" + stepSize +
+                ", cooldown=" + cooldownSteps + '}';
+    }
+}
+
+// Replays a load trace against a fleet and applies a ScalingPolicy within
+// each server's min/max instances. Servers without auto-scaling stay at one
+// instance. Each server gets a share of the trace proportional to its
+// maximum capacity. Fleet data is flattened into primitive arrays once so
+// that thousands of policies can be swept in parallel.
+class AutoscalingSimulator {
+
+    // Requests one core can serve per step, and price per instance-step
+    static final double REQUESTS_PER_CORE = 100;
+    static final double PRICE_PER_CORE = 0.04;
+    static final double PRICE_PER_GB = 0.005;
+
+    private final double[] trace;
+    private final int[] minInstances;
+    private final int[] maxInstances;
+    private final double[] instanceCapacity;
+    private final double[] instanceCost;
+    private final double[] loadShare;
+
+    public AutoscalingSimulator(List<CloudServer> fleet, double[] trace) {
+        if (fleet.isEmpty() || trace.length == 0) {
+            throw new IllegalArgumentException("Fleet and trace must not be empty");
+        }
+        int n = fleet.size();
+        this.trace = trace.clone();
+        this.minInstances = new int[n];
+        this.maxInstances = new int[n];
+        this.instanceCapacity = new double[n];
+        this.instanceCost = new double[n];
+        this.loadShare = new double[n];
+
+        double totalCapacity = 0;
+        for (int i = 0; i < n; i++) {
+            CloudServer server = fleet.get(i);
+            minInstances[i] = server.getAutoScalling() ? server.getMinInstance() : 1;
+            maxInstances[i] = server.getAutoScalling() ? server.getMaxInstance() : 1;
+            instanceCapacity[i] = server.getCPUCores() * REQUESTS_PER_CORE;
+            instanceCost[i] = server.getCPUCores() * PRICE_PER_CORE + server.getRAMGB() * PRICE_PER_GB;
+            loadShare[i] = instanceCapacity[i] * maxInstances[i];
+            totalCapacity += loadShare[i];
+        }
+        for (int i = 0; i < n; i++) {
+            loadShare[i] /= totalCapacity;
+        }
+    }
+
+    public SimulationResult simulate(ScalingPolicy policy) {
+        double cost = 0;
+        long overloadedSteps = 0;
+        long scaleEvents = 0;
+
+        for (int i = 0; i < minInstances.length; i++) {
+            int instances = minInstances[i];
+            int cooldown = 0;
+            for (int t = 0; t < trace.length; t++) {
+                double utilization = trace[t] * loadShare[i] / (instances * instanceCapacity[i]);
+                if (utilization > 1.0) {
+                    overloadedSteps++;
+                }
+                cost += instances * instanceCost[i];
+
+                if (cooldown > 0) {
+                    cooldown--;
+                } else if (utilization > policy.getScaleOutUtilization() && instances < maxInstances[i]) {
+                    instances = Math.min(maxInstances[i], instances + policy.getStepSize());
+                    cooldown = policy.getCooldownSteps();
+                    scaleEvents++;
+                } else if (utilization < policy.getScaleInUtilization() && instances > minInstances[i]) {
+                    instances = Math.max(minInstances[i], instances - policy.getStepSize());
+                    cooldown = policy.getCooldownSteps();
+                    scaleEvents++;
+                }
+            }
+        }
+        long serverSteps = (long) minInstances.length * trace.length;
+        return new SimulationResult(policy, cost, (double) overloadedSteps / serverSteps, scaleEvents);
+    }
+
+    // Simulates every policy in parallel; cheapest first
+    public List<SimulationResult> sweep(List<ScalingPolicy> policies, ForkJoinPool pool) {
+        return pool.submit(() -> policies.parallelStream()
+                .map(this::simulate)
+                .sorted(Comparator.comparingDouble(SimulationResult::getCost))
+                .collect(Collectors.toList()))
+                .join();
+    }
+}
+
+// Cost and SLO outcome of one policy over the whole trace
+class SimulationResult {
+    private final ScalingPolicy policy;
+    private final double cost;
+    private final double sloViolationRate;
+    private final long scaleEvents;
+
+    SimulationResult(ScalingPolicy policy, double cost, double sloViolationRate, long scaleEvents) {
+        this.policy = policy;
+        this.cost = cost;
+        this.sloViolationRate = sloViolationRate;
+        this.scaleEvents = scaleEvents;
+    }
+
+    public ScalingPolicy getPolicy() { return policy; }
+    public double getCost() { return cost; }
+
+    // Fraction of server-steps where demand exceeded capacity
+    public double getSloViolationRate() { return sloViolationRate; }
+    public long getScaleEvents() { return scaleEvents; }
+
+    @Override
+    public String toString() {
+        return String.format("SimulationResult{%s, cost=%.2f, sloViolations=%.3f%%, scaleEvents=%d}",
+                policy, cost, sloViolationRate * 100, scaleEvents);
+    }
+}
+
+// ---------------- BINARY CODEC ----------------
+// Compact batch format for CloudServer configurations
+//   header  : 4 bytes magic, varint dictionary size, dictionary strings
+//             (varint length + UTF-8), varint record count
+//   record  : 1 byte flags (gpu, autoScalling, loadBalancer, backup, monitoring)
+//             varint ids of region, osType, gpuType, securityGroups (0 = null)
+//             zigzag varints of cpuCores, ramGB, minInstance, maxInstance, backupFrequency
+// Repeated strings (region, OS, GPU type, security groups) are stored once
+// in the dictionary; a typical record is ~10 bytes.
+final class CloudServerCodec {
+
+    static final int MAGIC = 0x43535631;
+
+    private static final int GPU = 1;
+    private static final int AUTO_SCALING = 1 << 1;
+    private static final int LOAD_BALANCER = 1 << 2;
+    private static final int BACKUP = 1 << 3;
+    private static final int MONITORING = 1 << 4;
+
+    // flags + 4 ids + 5 ints, each varint at most 5 bytes
+    private static final int MAX_RECORD_BYTES = 1 + 9 * 5;
+
+    private CloudServerCodec() {
+    }
+
+    public static ByteBuffer encode(List<CloudServer> servers) {
+        Map<String, Integer> ids = new HashMap<>();
+        List<byte[]> dictionary = new ArrayList<>();
+        int dictionaryBytes = 0;
+        for (CloudServer server : servers) {
+            for (String value : new String[]{server.getRegion(), server.getOSTYPE(),
+                    server.getGPUType(), server.getSecurityGroups()}) {
+                if (value != null && !ids.containsKey(value)) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    ids.put(value, dictionary.size() + 1);
+                    dictionary.add(bytes);
+                    dictionaryBytes += 5 + bytes.length;
+                }
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(4 + 5 + dictionaryBytes + 5 + servers.size() * MAX_RECORD_BYTES);
+        out.putInt(MAGIC);
+        putVarint(out, dictionary.size());
+        for (byte[] bytes : dictionary) {
+            putVarint(out, bytes.length);
+            out.put(bytes);
+        }
+        putVarint(out, servers.size());
+
+        for (CloudServer server : servers) {
+            int flags = (server.getGPUEnabled() ? GPU : 0)
+                    | (server.getAutoScalling() ? AUTO_SCALING : 0)
+                    | (server.getLoadBalancerEnabled() ? LOAD_BALANCER : 0)
+                    | (server.getBackupEnablled() ? BACKUP : 0)
+                    | (server.GetMonitoringEnablled() ? MONITORING : 0);
+            out.put((byte) flags);
+            putVarint(out, idOf(ids, server.getRegion()));
+            putVarint(out, idOf(ids, server.getOSTYPE()));
+            putVarint(out, idOf(ids, server.getGPUType()));
+            putVarint(out, idOf(ids, server.getSecurityGroups()));
+            putZigZag(out, server.getCPUCores());
+            putZigZag(out, server.getRAMGB());
+            putZigZag(out, server.getMinInstance());
+            putZigZag(out, server.getMaxInstance());
+            putZigZag(out, server.getBackupFrequency());
+        }
+        out.flip();
+        return out;
+    }
+
+    public static List<CloudServer> decodeAll(ByteBuffer in) {
+        Reader reader = new Reader(in);
+        List<CloudServer> servers = new ArrayList<>(reader.size());
+        while (reader.hasNext()) {
+            servers.add(reader.next());
+        }
+        return servers;
+    }
+
+    // Streams records straight out of the buffer (heap or direct/mapped) without
+    // copying it; only dictionary entries become Strings, and those are pooled.
+    // Records were validated when first built, so decoding skips validation.
+    static final class Reader implements Iterator<CloudServer> {
+        private final ByteBuffer in;
+        private final String[] dictionary;
+        private final int count;
+        private int read;
+
+        Reader(ByteBuffer buffer) {
+            this.in = buffer.slice();
+            if (in.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a CloudServer batch");
+            }
+            dictionary = new String[getVarint(in) + 1];
+            for (int i = 1; i < dictionary.length; i++) {
+                int length = getVarint(in);
+                String value;
+                if (in.hasArray()) {
+                    value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                    in.position(in.position() + length);
+                } else {
+                    byte[] bytes = new byte[length];
+                    in.get(bytes);
+                    value = new String(bytes, StandardCharsets.UTF_8);
+                }
+                dictionary[i] = StringPool.intern(value);
+            }
+            count = getVarint(in);
+        }
+
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return read < count;
+        }
+
+        @Override
+        public CloudServer next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            read++;
+            int flags = in.get();
+            String region = dictionary[getVarint(in)];
+            String osType = dictionary[getVarint(in)];
+            String gpuType = dictionary[getVarint(in)];
+            String securityGroups = dictionary[getVarint(in)];
+
+            CloudServer.CloudBuilder builder = CloudServer.CloudBuilder
+                    .unchecked(region, getZigZag(in), getZigZag(in), osType)
+                    .setMinInstance(getZigZag(in))
+                    .setMaxInstance(getZigZag(in))
+                    .setBackFrequency(getZigZag(in))
+                    .setGPUEnabled((flags & GPU) != 0)
+                    .setGPUType(gpuType)
+                    .setAutoScalling((flags & AUTO_SCALING) != 0)
+                    .setLoadBalancer((flags & LOAD_BALANCER) != 0)
+                    .setBackupEnable((flags & BACKUP) != 0)
+                    .setSecurityGroups(securityGroups)
+                    .setMonitoringEnabled((flags & MONITORING) != 0);
+            return new CloudServer(builder);
+        }
+    }
+
+    private static int idOf(Map<String, Integer> ids, String value) {
+        return value == null ? 0 : ids.get(value);
+    }
+
+    static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int getVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    // Zigzag keeps small negative values small (e.g. an unused backup frequency)
+    static void putZigZag(ByteBuffer out, int value) {
+        putVarint(out, (value << 1) ^ (value >> 31));
+    }
+
+    static int getZigZag(ByteBuffer in) {
+        int raw = getVarint(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+}
+
+// Binary codec vs a straightforward JSON encoding of the same fields
+class CodecBenchmark {
+
+    static void run(List<CloudServer> servers, int rounds) {
+        ByteBuffer binary = null;
+        List<String> json = null;
+        long binaryEncode = 0;
+        long binaryDecode = 0;
+        long jsonEncode = 0;
+        long jsonDecode = 0;
+        int checksum = 0;
+
+        for (int r = 0; r < rounds; r++) {
+            long t0 = System.nanoTime();
+            binary = CloudServerCodec.encode(servers);
+            long t1 = System.nanoTime();
+            checksum += CloudServerCodec.decodeAll(binary).size();
+            long t2 = System.nanoTime();
+            json = new ArrayList<>(servers.size());
+            for (CloudServer server : servers) {
+                json.add(toJson(server));
+            }
+            long t3 = System.nanoTime();
+            for (String line : json) {
+                checksum += fromJson(line).getCPUCores() > 0 ? 1 : 0;
+            }
+            long t4 = System.nanoTime();
+
+            // First round is warm-up
+            if (r > 0) {
+                binaryEncode += t1 - t0;
+                binaryDecode += t2 - t1;
+                jsonEncode += t3 - t2;
+                jsonDecode += t4 - t3;
+            }
+        }
+
+        long jsonBytes = 0;
+        for (String line : json) {
+            jsonBytes += line.getBytes(StandardCharsets.UTF_8).length;
+        }
+        int measured = Math.max(1, rounds - 1);
+        System.out.printf("binary: %,d bytes, encode %d ms, decode %d ms%n",
+                binary.remaining(), binaryEncode / measured / 1_000_000, binaryDecode / measured / 1_000_000);
+        System.out.printf("json  : %,d bytes, encode %d ms, decode %d ms (checksum %d)%n",
+                jsonBytes, jsonEncode / measured / 1_000_000, jsonDecode / measured / 1_000_000, checksum);
+    }
+
+    static String toJson(CloudServer s) {
+        return "{\"region\":" + quote(s.getRegion()) +
+                ",\"cpuCores\":" + s.getCPUCores() +
+                ",\"ramGB\":" + s.getRAMGB() +
+                ",\"osType\":" + quote(s.getOSTYPE()) +
+                ",\"gpuEnable\":" + s.getGPUEnabled() +
+                ",\"gpuType\":" + quote(s.getGPUType()) +
+                ",\"autoScalling\":" + s.getAutoScalling() +
+                ",\"minInstance\":" + s.getMinInstance() +
+                ",\"maxInstance\":" + s.getMaxInstance() +
+                ",\"loadBalancerEnabled\":" + s.getLoadBalancerEnabled() +
+                ",\"backupEnabled\":" + s.getBackupEnablled() +
+                ",\"backupFrequency\":" + s.getBackupFrequency() +
+                ",\"securityGroups\":" + quote(s.getSecurityGroups()) +
+                ",\"monitoringEnabled\":" + s.GetMonitoringEnablled() + "}";
+    }
+
+    // Parses the flat objects written by toJson (no nesting or escapes)
+    static CloudServer fromJson(String json) {
+        Map<String, String> fields = new HashMap<>();
+        String body = json.substring(1, json.length() - 1);
+        int i = 0;
+        while (i < body.length()) {
+            int keyEnd = body.indexOf('"', i + 1);
+            String key = body.substring(i + 1, keyEnd);
+            int valueStart = keyEnd + 2;
+            int valueEnd;
+            String value;
+            if (body.charAt(valueStart) == '"') {
+                valueEnd = body.indexOf('"', valueStart + 1) + 1;
+                value = body.substring(valueStart + 1, valueEnd - 1);
+            } else {
+                valueEnd = body.indexOf(',', valueStart);
+                if (valueEnd < 0) {
+                    valueEnd = body.length();
+                }
+                value = body.substring(valueStart, valueEnd);
+                if (value.equals("null")) {
+                    value = null;
+                }
+            }
+            fields.put(key, value);
+            i = valueEnd + 1;
+        }
+        return new CloudServer(CloudServer.CloudBuilder
+                .unchecked(fields.get("region"), Integer.parseInt(fields.get("cpuCores")),
+                        Integer.parseInt(fields.get("ramGB")), fields.get("osType"))
+                .setGPUEnabled(Boolean.parseBoolean(fields.get("gpuEnable")))
+                .setGPUType(fields.get("gpuType"))
+                .setAutoScalling(Boolean.parseBoolean(fields.get("autoScalling")))
+                .setMinInstance(Integer.parseInt(fields.get("minInstance")))
+                .setMaxInstance(Integer.parseInt(fields.get("maxInstance")))
+                .setLoadBalancer(Boolean.parseBoolean(fields.get("loadBalancerEnabled")))
+                .setBackupEnable(Boolean.parseBoolean(fields.get("backupEnabled")))
+                .setBackFrequency(Integer.parseInt(fields.get("backupFrequency")))
+                .setSecurityGroups(fields.get("securityGroups"))
+                .setMonitoringEnabled(Boolean.parseBoolean(fields.get("monitoringEnabled"))));
+    }
+
+    private static String quote(String value) {
+        return value == null ? "null" : "\"" + value + "\"";
+    }
+}
+
+// ---------------- MAIN CLASS ----------------
+public class Main {
+    public static void main(String[] args) {
+
+        // ✅ Valid CloudServer configuration using Builder
+        CloudServer server = new CloudServer.CloudBuilder(
+                "ap-south-1",   // region
+                8,              // CPU cores
+                32,             // RAM in GB
+                "Linux"         // OS type
+        )
+        .setGPUEnabled(true)
+        .setGPUType("NVIDIA A100")
+        .setAutoScalling(true)
+        .setMinInstance(2)
+        .setMaxInstance(10)
+        .setLoadBalancer(true)
+        .setBackupEnable(true)
+        .setBackFrequency(24)           // Backup every 24 hours
+        .setSecurityGroups("ssh,http,https")
+        .setMonitoringEnabled(true)
+        .build();
+
+        // Print final server configuration
+        System.out.println(server);
+
+        // ❌ Invalid configuration example (GPU enabled but type missing)
+        try {
+            CloudServer invalidServer = new CloudServer.CloudBuilder(
+                    "us-east-1",
+                    4,
+                    16,
+                    "Ubuntu"
+            )
+            .setGPUEnabled(true)   // GPU enabled
+            // GPU type not set → validation failure
+            .build();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error creating server: " + e.getMessage());
+        }
+
+        // Template + interning: many candidate configurations, few distinct objects
+        CloudServerInterner interner = new CloudServerInterner();
+        CloudServer.CloudTemplate template = new CloudServer.CloudTemplate(server, interner);
+
+        String[] regions = {"ap-south-1", "us-east-1", "eu-west-1"};
+        int[][] sizes = {{4, 16}, {8, 32}, {16, 64}};
+        int candidates = 0;
+        for (int round = 0; round < 1000; round++) {
+            for (String region : regions) {
+                for (int[] size : sizes) {
+                    CloudServer regional = template.withRegion(region);
+                    CloudServer.CloudTemplate regionalTemplate = new CloudServer.CloudTemplate(regional, interner);
+                    regionalTemplate.withSize(size[0], size[1]);
+                    candidates++;
+                }
+            }
+        }
+        System.out.println("Candidates: " + candidates +
+                ", distinct servers: " + interner.size() +
+                ", pooled strings: " + StringPool.size());
+        System.out.println("Same instance for same config: " +
+                (template.withRegion("us-east-1") == template.withRegion("us-east-1")));
+
+        // Bulk validation: every error per config, no exceptions
+        List<CloudServer.CloudBuilder> fleet = new ArrayList<>();
+        for (int i = 0; i < 1_000_000; i++) {
+            CloudServer.CloudBuilder config = CloudServer.CloudBuilder
+                    .unchecked(regions[i % regions.length], 1 + i % 32, (i % 97 == 0) ? 0 : 4 + i % 64, "Linux")
+                    .setGPUEnabled(i % 50 == 0)
+                    .setAutoScalling(i % 3 == 0)
+                    .setMinInstance(1)
+                    .setMaxInstance(1 + i % 5);
+            if (i % 50 == 0 && i % 100 != 0) {
+                config.setGPUType("NVIDIA T4");
+            }
+            fleet.add(config);
+        }
+        FleetPlan plan = new FleetPlanner(ForkJoinPool.commonPool()).plan(fleet);
+        System.out.println("Validated " + plan.size() + " configs at " + plan.configsPerSecond() +
+                " configs/s, valid: " + plan.getValidCount() + ", invalid: " + plan.getInvalidCount());
+        System.out.println("Errors for config 0: " + plan.getErrors(0));
+
+        // Placement of 100k servers onto per-region host inventories
+        Map<String, HostType> inventory = new HashMap<>();
+        inventory.put("ap-south-1", new HostType(64, 256, 4, 50_000));
+        inventory.put("us-east-1", new HostType(96, 384, 8, 50_000));
+        inventory.put("eu-west-1", new HostType(64, 512, 2, 50_000));
+
+        Random random = new Random(42);
+        int[] coreOptions = {2, 4, 8, 16, 32};
+        List<CloudServer> placementFleet = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            int cores = coreOptions[random.nextInt(coreOptions.length)];
+            CloudServer.CloudBuilder config = new CloudServer.CloudBuilder(
+                    regions[random.nextInt(regions.length)], cores, cores * (2 + random.nextInt(4)), "Linux");
+            if (random.nextInt(20) == 0) {
+                config.setGPUEnabled(true).setGPUType("NVIDIA T4");
+            }
+            placementFleet.add(config.build(interner));
+        }
+        long placeStart = System.nanoTime();
+        Map<String, RegionPlacement> placement =
+                new PlacementEngine(ForkJoinPool.commonPool()).place(placementFleet, inventory);
+        System.out.println("Placed 100000 servers in " + (System.nanoTime() - placeStart) / 1_000_000 + " ms");
+        for (RegionPlacement region : placement.values()) {
+            System.out.println(region);
+        }
+
+        // Autoscaling policy sweep over one day of per-minute load
+        List<CloudServer> scalingFleet = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            scalingFleet.add(new CloudServer.CloudBuilder(regions[i % regions.length], 4 + 4 * (i % 4), 16, "Linux")
+                    .setAutoScalling(true)
+                    .setMinInstance(1 + i % 2)
+                    .setMaxInstance(10)
+                    .build(interner));
+        }
+        double[] trace = new double[24 * 60];
+        for (int t = 0; t < trace.length; t++) {
+            double daily = 0.55 + 0.45 * Math.sin(2 * Math.PI * (t - 360) / trace.length);
+            trace[t] = 400_000 * daily * (0.9 + 0.2 * random.nextDouble());
+        }
+        List<ScalingPolicy> policies = new ArrayList<>();
+        for (int outPercent = 60; outPercent <= 95; outPercent += 5) {
+            for (int inPercent = 20; inPercent < outPercent - 10; inPercent += 10) {
+                for (int step = 1; step <= 3; step++) {
+                    for (int cooldown = 0; cooldown <= 10; cooldown += 5) {
+                        policies.add(new ScalingPolicy(outPercent / 100.0, inPercent / 100.0, step, cooldown));
+                    }
+                }
+            }
+        }
+        long sweepStart = System.nanoTime();
+        List<SimulationResult> results = new AutoscalingSimulator(scalingFleet, trace)
+                .sweep(policies, ForkJoinPool.commonPool());
+        System.out.println("Swept " + policies.size() + " policies in " +
+                (System.nanoTime() - sweepStart) / 1_000_000 + " ms");
+        results.stream()
+                .filter(r -> r.getSloViolationRate() < 0.01)
+                .findFirst()
+                .ifPresent(r -> System.out.println("Cheapest within 1% SLO violations: " + r));
+
+        // Compact binary codec: round trip and comparison with JSON
+        ByteBuffer encoded = CloudServerCodec.encode(placementFleet);
+        List<CloudServer> decoded = CloudServerCodec.decodeAll(encoded);
+        System.out.println("Binary round trip equal: " + decoded.equals(placementFleet) +
+                ", bytes per server: " + encoded.remaining() / placementFleet.size());
+        CodecBenchmark.run(placementFleet, 5);
+
+        // Incremental rebuild: only the backup rule is re-checked here
+        ServerChangeSet change = server.toBuilder()
+                .setBackFrequency(12)
+                .setMonitoringEnabled(false)
+                .rebuild(server);
+        System.out.println(change);
+
+        // Reconciliation over 500k servers where 1% changed
+        List<CloudServer> current = new ArrayList<>(500_000);
+        List<CloudServer> desired = new ArrayList<>(500_000);
+        for (int i = 0; i < 500_000; i++) {
+            CloudServer existing = placementFleet.get(i % placementFleet.size());
+            current.add(existing);
+            desired.add(i % 100 == 0 ? existing.toBuilder().setLoadBalancer(true).rebuild(existing).getAfter() : existing);
+        }
+        long reconcileStart = System.nanoTime();
+        int touched = 0;
+        for (int i = 0; i < current.size(); i++) {
+            if (current.get(i) != desired.get(i) && !current.get(i).diff(desired.get(i)).isEmpty()) {
+                touched++;
+            }
+        }
+        System.out.println("Reconciled 500000 servers in " + (System.nanoTime() - reconcileStart) / 1_000_000 +
+                " ms, changed: " + touched);
+
+        // Security group index over a million servers
+        String[] groupOptions = {"ssh,http,https", "http,https", "https", "ssh,postgres", "http,redis"};
+        List<CloudServer> exposedFleet = new ArrayList<>(1_000_000);
+        for (int i = 0; i < 1_000_000; i++) {
+            exposedFleet.add(new CloudServer.CloudBuilder(regions[i % regions.length], 4, 16, "Linux")
+                    .setSecurityGroups(groupOptions[i % groupOptions.length])
+                    .build());
+        }
+        SecurityGroupIndex groupIndex = new SecurityGroupIndex(exposedFleet);
+        long queryStart = System.nanoTime();
+        int sshServers = groupIndex.serversExposingPort(22).cardinality();
+        int webAndSsh = groupIndex.serversWithAll("ssh", "https").cardinality();
+        System.out.println("Port 22 open on " + sshServers + " servers, ssh+https on " + webAndSsh +
+                " (queries took " + (System.nanoTime() - queryStart) / 1_000 + " us)");
+        System.out.println("Parsed groups of first server: " + server.getSecurityGroupSet());
+
+        // Custom group names don't use up the 64 registry bits
+        List<CloudServer> teamFleet = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            teamFleet.add(new CloudServer.CloudBuilder("us-east-1", 2, 4, "Linux")
+                    .setSecurityGroups("https,team-" + i + (i % 2 == 0 ? ",8080" : ""))
+                    .build());
         }
+        SecurityGroupIndex teamIndex = new SecurityGroupIndex(teamFleet);
+        System.out.println("200 custom groups: team-150 on " + teamIndex.serversWithGroup("team-150").cardinality() +
+                ", port 8080 open on " + teamIndex.serversExposingPort(8080).cardinality() +
+                ", groups of last server: " + teamFleet.get(199).getSecurityGroupSet());
     }
 }
@@ -13,6 +13,16 @@ The controller should not directly call device methods
 New devices or commands should be addable without modifying existing code
 Macro commands should behave like normal commands
 
+Scaling:
+Commands for many homes run asynchronously, one single-writer queue per home
+Redundant commands inside a short window are coalesced (LightOn + LightOff = nothing)
+Undo history has a fixed depth with redo; older entries can spill to disk
+Macro commands can declare dependencies so independent devices switch concurrently
+Home tracks device state: no-op switches are skipped and undo restores the previous state
+Every executed command is journaled, with periodic snapshots for fast crash recovery
+One hub manages ~100k homes, sharded across event-loop threads with per-shard metrics
+Commands can be scheduled for a time (e.g. Good Morning at 07:00) with jitter to spread bursts
+
 ┌──────────────┐
 │     User     │
 └──────┬───────┘
@@ -44,136 +54,245 @@ Macro commands should behave like normal commands
 └──────────────────┘
 
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 // ===================== COMMAND =====================
 interface Command {
     void execute();
     void undo();
+
+    // What history keeps after execute(): commands that remember per-run
+    // state return a copy, so one instance can be pressed more than once
+    default Command ran() {
+        return this;
+    }
+}
+
+// Devices a Home can switch
+enum Device {
+    LIGHT("Lights"),
+    FAN("Fan"),
+    AC("AC");
+
+    private final String label;
+
+    Device(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
+
+// A command that switches exactly one device on or off
+// Lets the executor recognise commands that cancel each other out
+interface DeviceCommand extends Command {
+    Device device();
+    boolean turnsOn();
+
+    // State the device had before the last execute(), used by undo
+    boolean wasOn();
 }
 
 // ===================== RECEIVER =====================
+// Device state is one bit per Device (bit = ordinal), updated with CAS so
+// concurrent commands never lose a change. Switching a device to the state
+// it is already in is skipped and returns without any device traffic.
 class Home {
 
-    public void lightOn() {
-        System.out.println("Lights ON");
+    private final AtomicInteger state = new AtomicInteger();
+    private final AtomicLong skipped = new AtomicLong();
+    private final boolean announce;
+
+    public Home() {
+        this(true);
     }
 
-    public void lightOff() {
-        System.out.println("Lights OFF");
+    // announce = false for homes managed in bulk (no console line per switch)
+    public Home(boolean announce) {
+        this.announce = announce;
     }
 
-    public void fanOn() {
-        System.out.println("Fan ON");
+    // Each switch returns whether the device was on before the call
+    public boolean lightOn() {
+        return switchDevice(Device.LIGHT, true);
     }
 
-    public void fanOff() {
-        System.out.println("Fan OFF");
+    public boolean lightOff() {
+        return switchDevice(Device.LIGHT, false);
     }
 
-    public void acOn() {
-        System.out.println("AC ON");
+    public boolean fanOn() {
+        return switchDevice(Device.FAN, true);
     }
 
-    public void acOff() {
-        System.out.println("AC OFF");
+    public boolean fanOff() {
+        return switchDevice(Device.FAN, false);
     }
-}
 
-// ===================== CONCRETE COMMANDS =====================
-class LightOn implements Command {
-    private Home home;
+    public boolean acOn() {
+        return switchDevice(Device.AC, true);
+    }
 
-    public LightOn(Home home) {
-        this.home = home;
+    public boolean acOff() {
+        return switchDevice(Device.AC, false);
     }
 
-    public void execute() {
-        home.lightOn();
+    public boolean switchDevice(Device device, boolean on) {
+        int bit = 1 << device.ordinal();
+        while (true) {
+            int current = state.get();
+            boolean wasOn = (current & bit) != 0;
+            if (wasOn == on) {
+                skipped.incrementAndGet();
+                return wasOn;
+            }
+            int next = on ? current | bit : current & ~bit;
+            if (state.compareAndSet(current, next)) {
+                if (announce) {
+                    System.out.println(device.getLabel() + (on ? " ON" : " OFF"));
+                }
+                return wasOn;
+            }
+        }
     }
 
-    public void undo() {
-        home.lightOff();
+    public boolean isOn(Device device) {
+        return (state.get() & (1 << device.ordinal())) != 0;
+    }
+
+    // Whole-home state as a bitset
+    public int snapshot() {
+        return state.get();
+    }
+
+    // Sets the state directly without switching devices (e.g. after a restart)
+    public void restore(int snapshot) {
+        state.set(snapshot);
+    }
+
+    public long getSkippedCount() {
+        return skipped.get();
     }
 }
 
-class LightOff implements Command {
-    private Home home;
+// ===================== CONCRETE COMMANDS =====================
+// Switches one device and remembers the state it had before, so undo
+// restores that state instead of applying the blind inverse
+abstract class DeviceToggle implements DeviceCommand {
+    private final Home home;
+    private final Device device;
+    private final boolean on;
+    private boolean wasOn;
 
-    public LightOff(Home home) {
+    // wasOn is only meaningful for a command that already ran (e.g. decoded from disk)
+    protected DeviceToggle(Home home, Device device, boolean on, boolean wasOn) {
         this.home = home;
+        this.device = device;
+        this.on = on;
+        this.wasOn = wasOn;
     }
 
     public void execute() {
-        home.lightOff();
+        wasOn = home.switchDevice(device, on);
     }
 
     public void undo() {
-        home.lightOn();
+        if (wasOn != on) {
+            home.switchDevice(device, wasOn);
+        }
     }
-}
 
-class FanOn implements Command {
-    private Home home;
+    // A fresh command per run, so pressing this instance again can't overwrite its state
+    public Command ran() {
+        return CommandCodec.deviceCommand(home, device, on, wasOn);
+    }
 
-    public FanOn(Home home) {
-        this.home = home;
+    public Device device() {
+        return device;
     }
 
-    public void execute() {
-        home.fanOn();
+    public boolean turnsOn() {
+        return on;
     }
 
-    public void undo() {
-        home.fanOff();
+    public boolean wasOn() {
+        return wasOn;
     }
 }
 
-class FanOff implements Command {
-    private Home home;
+class LightOn extends DeviceToggle {
+    public LightOn(Home home) {
+        this(home, false);
+    }
 
-    public FanOff(Home home) {
-        this.home = home;
+    public LightOn(Home home, boolean wasOn) {
+        super(home, Device.LIGHT, true, wasOn);
     }
+}
 
-    public void execute() {
-        home.fanOff();
+class LightOff extends DeviceToggle {
+    public LightOff(Home home) {
+        this(home, false);
     }
 
-    public void undo() {
-        home.fanOn();
+    public LightOff(Home home, boolean wasOn) {
+        super(home, Device.LIGHT, false, wasOn);
     }
 }
 
-class AcOn implements Command {
-    private Home home;
+class FanOn extends DeviceToggle {
+    public FanOn(Home home) {
+        this(home, false);
+    }
 
-    public AcOn(Home home) {
-        this.home = home;
+    public FanOn(Home home, boolean wasOn) {
+        super(home, Device.FAN, true, wasOn);
     }
+}
 
-    public void execute() {
-        home.acOn();
+class FanOff extends DeviceToggle {
+    public FanOff(Home home) {
+        this(home, false);
     }
 
-    public void undo() {
-        home.acOff();
+    public FanOff(Home home, boolean wasOn) {
+        super(home, Device.FAN, false, wasOn);
     }
 }
 
-class AcOff implements Command {
-    private Home home;
+class AcOn extends DeviceToggle {
+    public AcOn(Home home) {
+        this(home, false);
+    }
 
-    public AcOff(Home home) {
-        this.home = home;
+    public AcOn(Home home, boolean wasOn) {
+        super(home, Device.AC, true, wasOn);
     }
+}
 
-    public void execute() {
-        home.acOff();
+class AcOff extends DeviceToggle {
+    public AcOff(Home home) {
+        this(home, false);
     }
 
-    public void undo() {
-        home.acOn();
+    public AcOff(Home home, boolean wasOn) {
+        super(home, Device.AC, false, wasOn);
     }
 }
 
@@ -185,6 +304,10 @@ class MacroCommand implements Command {
         this.commands = commands;
     }
 
+    public List<Command> getCommands() {
+        return Collections.unmodifiableList(commands);
+    }
+
     public void execute() {
         for (Command command : commands) {
             command.execute();
@@ -196,27 +319,1612 @@ class MacroCommand implements Command {
             commands.get(i).undo();
         }
     }
+
+    public Command ran() {
+        List<Command> ran = new ArrayList<>(commands.size());
+        for (Command command : commands) {
+            ran.add(command.ran());
+        }
+        return new MacroCommand(ran);
+    }
+}
+
+// ===================== PARALLEL MACRO COMMAND =====================
+// Macro whose sub-commands declare dependencies on each other.
+// Commands are grouped into waves (topological levels): everything in a
+// wave is independent and runs concurrently, waves run in order.
+// Undo runs the waves in reverse; a failure rolls back what already ran.
+class ParallelMacroCommand implements Command {
+
+    private final List<List<Command>> waves;
+    private final ExecutorService executor;
+
+    private ParallelMacroCommand(List<List<Command>> waves, ExecutorService executor) {
+        this.waves = waves;
+        this.executor = executor;
+    }
+
+    public void execute() {
+        for (int w = 0; w < waves.size(); w++) {
+            List<Command> done = new ArrayList<>();
+            Throwable failure = runWave(waves.get(w), true, done);
+            if (failure != null) {
+                // Rollback keeps going past failures; they travel with the original one
+                IllegalStateException error = new IllegalStateException("Macro command failed and was rolled back", failure);
+                Throwable undoFailure = runWave(done, false, new ArrayList<>());
+                if (undoFailure != null) {
+                    error.addSuppressed(undoFailure);
+                }
+                for (int prev = w - 1; prev >= 0; prev--) {
+                    undoFailure = runWave(waves.get(prev), false, new ArrayList<>());
+                    if (undoFailure != null) {
+                        error.addSuppressed(undoFailure);
+                    }
+                }
+                throw error;
+            }
+        }
+    }
+
+    // Undoes every wave even if some fail, like the rollback in execute()
+    public void undo() {
+        IllegalStateException error = null;
+        for (int w = waves.size() - 1; w >= 0; w--) {
+            Throwable failure = runWave(waves.get(w), false, new ArrayList<>());
+            if (failure != null) {
+                if (error == null) {
+                    error = new IllegalStateException("Macro undo failed", failure);
+                } else {
+                    error.addSuppressed(failure);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public Command ran() {
+        List<List<Command>> ran = new ArrayList<>(waves.size());
+        for (List<Command> wave : waves) {
+            List<Command> copy = new ArrayList<>(wave.size());
+            for (Command command : wave) {
+                copy.add(command.ran());
+            }
+            ran.add(copy);
+        }
+        return new ParallelMacroCommand(ran, executor);
+    }
+
+    // Sub-commands in an order that respects their dependencies
+    public List<Command> getCommands() {
+        List<Command> ordered = new ArrayList<>();
+        for (List<Command> wave : waves) {
+            ordered.addAll(wave);
+        }
+        return ordered;
+    }
+
+    // Runs one wave concurrently and waits for all of it; collects the commands
+    // that succeeded into done and returns the first failure (or null), with
+    // any later failures of the same wave added to it as suppressed
+    private Throwable runWave(List<Command> wave, boolean execute, List<Command> done) {
+        if (wave.size() == 1) {
+            try {
+                if (execute) {
+                    wave.get(0).execute();
+                } else {
+                    wave.get(0).undo();
+                }
+                done.add(wave.get(0));
+                return null;
+            } catch (RuntimeException e) {
+                return e;
+            }
+        }
+
+        List<Future<?>> futures = new ArrayList<>(wave.size());
+        for (Command command : wave) {
+            futures.add(executor.submit(execute ? command::execute : command::undo));
+        }
+
+        Throwable failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+                done.add(wave.get(i));
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        return failure;
+    }
+
+    // ---------- BUILDER ----------
+    static class Builder {
+        private final ExecutorService executor;
+        private final Map<String, Command> commands = new LinkedHashMap<>();
+        private final Map<String, List<String>> dependencies = new HashMap<>();
+
+        Builder(ExecutorService executor) {
+            if (executor == null) {
+                throw new IllegalArgumentException("Executor is required");
+            }
+            this.executor = executor;
+        }
+
+        // Adds a named sub-command that may only start after dependsOn have finished
+        public Builder add(String name, Command command, String... dependsOn) {
+            if (name == null || command == null) {
+                throw new IllegalArgumentException("Name and command are required");
+            }
+            if (commands.putIfAbsent(name, command) != null) {
+                throw new IllegalArgumentException("Duplicate command name " + name);
+            }
+            dependencies.put(name, Arrays.asList(dependsOn));
+            return this;
+        }
+
+        // Kahn's algorithm: each pass takes every command whose dependencies are done
+        public ParallelMacroCommand build() {
+            for (Map.Entry<String, List<String>> entry : dependencies.entrySet()) {
+                for (String dep : entry.getValue()) {
+                    if (!commands.containsKey(dep)) {
+                        throw new IllegalArgumentException(
+                                entry.getKey() + " depends on unknown command " + dep);
+                    }
+                }
+            }
+
+            Map<String, Integer> remaining = new HashMap<>();
+            Map<String, List<String>> dependents = new HashMap<>();
+            for (String name : commands.keySet()) {
+                remaining.put(name, dependencies.get(name).size());
+                for (String dep : dependencies.get(name)) {
+                    dependents.computeIfAbsent(dep, k -> new ArrayList<>()).add(name);
+                }
+            }
+
+            List<List<Command>> waves = new ArrayList<>();
+            List<String> ready = new ArrayList<>();
+            for (String name : commands.keySet()) {
+                if (remaining.get(name) == 0) {
+                    ready.add(name);
+                }
+            }
+
+            int placed = 0;
+            while (!ready.isEmpty()) {
+                List<Command> wave = new ArrayList<>(ready.size());
+                List<String> next = new ArrayList<>();
+                for (String name : ready) {
+                    wave.add(commands.get(name));
+                    for (String child : dependents.getOrDefault(name, Collections.emptyList())) {
+                        if (remaining.merge(child, -1, Integer::sum) == 0) {
+                            next.add(child);
+                        }
+                    }
+                }
+                placed += wave.size();
+                waves.add(wave);
+                ready = next;
+            }
+
+            if (placed != commands.size()) {
+                throw new IllegalArgumentException("Macro command dependencies contain a cycle");
+            }
+            return new ParallelMacroCommand(waves, executor);
+        }
+    }
+}
+
+// ===================== COMMAND CODEC =====================
+// Compact binary form of a command, bound back to a Home when decoded
+//   device command : 1 byte  = device ordinal << 2 | wasOn << 1 | on
+//   macro          : 1 byte MACRO, 2 bytes count, then each sub-command
+//                    (parallel macros are stored as a macro in dependency order)
+final class CommandCodec {
+
+    static final byte MACRO = 0x40;
+
+    private CommandCodec() {
+    }
+
+    public static boolean canEncode(Command command) {
+        if (command instanceof DeviceCommand) {
+            return true;
+        }
+        List<Command> children = childrenOf(command);
+        if (children == null || children.size() > 0xFFFF) {
+            return false;
+        }
+        for (Command c : children) {
+            if (!canEncode(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Bytes encode() writes for a command canEncode() accepts
+    public static int encodedSize(Command command) {
+        if (command instanceof DeviceCommand) {
+            return 1;
+        }
+        int size = 3;
+        for (Command c : childrenOf(command)) {
+            size += encodedSize(c);
+        }
+        return size;
+    }
+
+    public static void encode(Command command, ByteBuffer out) {
+        if (command instanceof DeviceCommand) {
+            DeviceCommand dc = (DeviceCommand) command;
+            out.put((byte) (dc.device().ordinal() << 2 | (dc.wasOn() ? 2 : 0) | (dc.turnsOn() ? 1 : 0)));
+        } else if (childrenOf(command) != null) {
+            List<Command> children = childrenOf(command);
+            out.put(MACRO);
+            out.putShort((short) children.size());
+            for (Command c : children) {
+                encode(c, out);
+            }
+        } else {
+            throw new IllegalArgumentException(
+                    "Command can't be encoded: " + command.getClass().getSimpleName());
+        }
+    }
+
+    // Composite commands are stored as a plain macro of their sub-commands
+    // (a parallel macro in dependency order); null for non-composites
+    private static List<Command> childrenOf(Command command) {
+        if (command instanceof MacroCommand) {
+            return ((MacroCommand) command).getCommands();
+        }
+        if (command instanceof ParallelMacroCommand) {
+            return ((ParallelMacroCommand) command).getCommands();
+        }
+        return null;
+    }
+
+    public static Command decode(ByteBuffer in, Home home) {
+        byte tag = in.get();
+        if (tag == MACRO) {
+            int count = in.getShort() & 0xFFFF;
+            List<Command> children = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                children.add(decode(in, home));
+            }
+            return new MacroCommand(children);
+        }
+        return deviceCommand(home, Device.values()[tag >> 2], (tag & 1) == 1, (tag & 2) == 2);
+    }
+
+    public static Command deviceCommand(Home home, Device device, boolean on, boolean wasOn) {
+        switch (device) {
+            case LIGHT:
+                return on ? new LightOn(home, wasOn) : new LightOff(home, wasOn);
+            case FAN:
+                return on ? new FanOn(home, wasOn) : new FanOff(home, wasOn);
+            case AC:
+                return on ? new AcOn(home, wasOn) : new AcOff(home, wasOn);
+            default:
+                throw new IllegalArgumentException("Unknown device " + device);
+        }
+    }
+}
+
+// ===================== HISTORY SPILL =====================
+// On-disk stack for history entries evicted from memory
+// Each record is the encoded command followed by its 2-byte length,
+// so the newest record can be read back from the end of the file
+class HistorySpill implements AutoCloseable {
+
+    private final FileChannel channel;
+    private final Home home;
+    private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private long size;
+
+    public HistorySpill(Path file, Home home) {
+        this.home = home;
+        try {
+            this.channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open history spill " + file, e);
+        }
+    }
+
+    // Returns false when the command has no compact form or is too large (caller drops it)
+    public boolean push(Command command) {
+        if (!CommandCodec.canEncode(command)) {
+            return false;
+        }
+        int length = CommandCodec.encodedSize(command);
+        if (length > 0xFFFF) {
+            return false;
+        }
+        ByteBuffer record = length + 2 <= buffer.capacity() ? buffer.clear() : ByteBuffer.allocate(length + 2);
+        CommandCodec.encode(command, record);
+        record.putShort((short) length);
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                size += channel.write(record, size);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed writing history spill", e);
+        }
+        return true;
+    }
+
+    // Removes and returns the newest spilled command, or null if empty
+    public Command pop() {
+        if (size == 0) {
+            return null;
+        }
+        try {
+            buffer.clear().limit(2);
+            channel.read(buffer, size - 2);
+            int length = buffer.flip().getShort() & 0xFFFF;
+
+            long recordStart = size - 2 - length;
+            ByteBuffer record = length <= buffer.capacity() ? buffer.clear() : ByteBuffer.allocate(length);
+            record.limit(length);
+            while (record.hasRemaining()) {
+                channel.read(record, recordStart + record.position());
+            }
+            record.flip();
+
+            channel.truncate(recordStart);
+            size = recordStart;
+            return CommandCodec.decode(record, home);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed reading history spill", e);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed closing history spill", e);
+        }
+    }
+}
+
+// ===================== UNDO HISTORY =====================
+// Fixed-capacity ring of executed commands with redo support
+// Slots [start, start + size) can be undone (oldest first),
+// slots [start + size, start + size + redo) can be redone.
+// Only stores positions: the Controller executes/undoes the returned commands.
+// The ring is allocated on the first push, so unused histories stay small.
+class UndoHistory {
+
+    private final int depth;
+    private Command[] ring;
+    private final HistorySpill spill;
+    private int start;
+    private int size;
+    private int redo;
+    private long dropped;
+
+    public UndoHistory(int depth) {
+        this(depth, null);
+    }
+
+    public UndoHistory(int depth, HistorySpill spill) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("History depth must be positive");
+        }
+        this.depth = depth;
+        this.spill = spill;
+    }
+
+    // Records an executed command; clears redo and evicts the oldest entry when full
+    public void push(Command command) {
+        allocate();
+        for (int i = 0; i < redo; i++) {
+            ring[slot(size + i)] = null;
+        }
+        redo = 0;
+
+        if (size == depth) {
+            Command oldest = ring[start];
+            ring[start] = null;
+            start = slot(1);
+            size--;
+            if (spill == null || !spill.push(oldest)) {
+                dropped++;
+            }
+        }
+        ring[slot(size)] = command;
+        size++;
+    }
+
+    // Next command to undo (moved to the redo side), or null if nothing is left
+    public Command undo() {
+        if (size > 0) {
+            size--;
+            redo++;
+            return ring[slot(size)];
+        }
+        Command spilled = spill == null ? null : spill.pop();
+        if (spilled == null) {
+            return null;
+        }
+        // Make room in front of the redo entries, forgetting the furthest redo if full
+        allocate();
+        if (redo == depth) {
+            ring[slot(redo - 1)] = null;
+            redo--;
+        }
+        start = slot(-1);
+        ring[start] = spilled;
+        redo++;
+        return spilled;
+    }
+
+    // Next command to redo (moved back to the undo side), or null
+    public Command redo() {
+        if (redo == 0) {
+            return null;
+        }
+        Command command = ring[slot(size)];
+        size++;
+        redo--;
+        return command;
+    }
+
+    // Undo entries (oldest first) followed by redo entries
+    public List<Command> entries() {
+        List<Command> result = new ArrayList<>(size + redo);
+        for (int i = 0; i < size + redo; i++) {
+            result.add(ring[slot(i)]);
+        }
+        return result;
+    }
+
+    public int undoSize() {
+        return size;
+    }
+
+    public int redoSize() {
+        return redo;
+    }
+
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    private void allocate() {
+        if (ring == null) {
+            ring = new Command[depth];
+        }
+    }
+
+    private int slot(int offset) {
+        return Math.floorMod(start + offset, depth);
+    }
 }
 
 // ===================== INVOKER =====================
 class Controller {
-    private Stack<Command> history = new Stack<>();
+    static final int DEFAULT_HISTORY_DEPTH = 64;
+
+    private final UndoHistory history;
+    private final CommandJournal journal;
+
+    public Controller() {
+        this(new UndoHistory(DEFAULT_HISTORY_DEPTH));
+    }
+
+    public Controller(UndoHistory history) {
+        this(history, null);
+    }
+
+    public Controller(UndoHistory history, CommandJournal journal) {
+        this.history = history;
+        this.journal = journal;
+    }
 
     public void press(Command command) {
+        if (journal != null) {
+            // Rejects a command too large to journal before it touches the home
+            journal.recordSize(CommandJournal.PRESS, command);
+        }
         command.execute();
-        history.push(command);
+        Command ran = command.ran();
+        history.push(ran);
+        if (journal != null) {
+            journal.append(CommandJournal.PRESS, ran, history);
+        }
     }
 
     public void undo() {
-        if (!history.isEmpty()) {
-            history.pop().undo();
+        Command command = history.undo();
+        if (command != null) {
+            command.undo();
+            if (journal != null) {
+                journal.append(CommandJournal.UNDO, null, history);
+            }
+        }
+    }
+
+    public void redo() {
+        Command command = history.redo();
+        if (command != null) {
+            command.execute();
+            if (journal != null) {
+                journal.append(CommandJournal.REDO, null, history);
+            }
+        }
+    }
+}
+
+// ===================== COMMAND JOURNAL =====================
+// Append-only binary log of what a Controller did to its Home.
+//   record   : 2 bytes body length, then body
+//   body     : 1 byte op (PRESS / UNDO / REDO), 1 byte home state after the op,
+//              for PRESS the encoded command (OPAQUE if it has no compact form)
+// Every snapshotInterval records the home state and undo history are written
+// to a snapshot file and the journal rotates to a new, empty file
+// (commands-<generation>.journal); the old one is deleted, so recovery
+// only replays the records appended after the last snapshot.
+class CommandJournal implements AutoCloseable {
+
+    static final byte PRESS = 1;
+    static final byte UNDO = 2;
+    static final byte REDO = 3;
+
+    // Placeholder for commands CommandCodec can't encode; replays as a no-op
+    static final byte OPAQUE = 0x7F;
+
+    private static final String JOURNAL_GLOB = "commands-*.journal";
+    private static final String SNAPSHOT_FILE = "home.snapshot";
+
+    private static final Command NO_OP = new Command() {
+        public void execute() {
+        }
+
+        public void undo() {
+        }
+    };
+
+    private final Path directory;
+    private final Path snapshotFile;
+    private final Home home;
+    private final int snapshotInterval;
+    private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private FileChannel channel;
+    private long generation;
+    private long position;
+    private int sinceSnapshot;
+
+    // Appends to the journal the directory's current snapshot points at
+    public CommandJournal(Path directory, Home home, int snapshotInterval) {
+        this(directory, home, snapshotInterval, readGeneration(directory));
+    }
+
+    private CommandJournal(Path directory, Home home, int snapshotInterval, long generation) {
+        if (snapshotInterval <= 0) {
+            throw new IllegalArgumentException("Snapshot interval must be positive");
+        }
+        this.directory = directory;
+        this.home = home;
+        this.snapshotInterval = snapshotInterval;
+        this.snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        this.generation = generation;
+        try {
+            Files.createDirectories(directory);
+            this.channel = FileChannel.open(journalFile(directory, generation),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.position = channel.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open command journal in " + directory, e);
+        }
+    }
+
+    // Appends one record; written to the OS on every call, fsynced with each snapshot
+    public void append(byte op, Command command, UndoHistory history) {
+        int size = recordSize(op, command);
+        ByteBuffer record = size + 2 <= buffer.capacity() ? buffer.clear() : ByteBuffer.allocate(size + 2);
+        record.putShort((short) size);
+        record.put(op);
+        record.put((byte) home.snapshot());
+        if (op == PRESS) {
+            encodeEntry(command, record);
+        }
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed writing command journal", e);
+        }
+
+        if (++sinceSnapshot >= snapshotInterval) {
+            snapshot(history);
+        }
+    }
+
+    // Body size of the record for op; throws if it can't fit the 2-byte length
+    public int recordSize(byte op, Command command) {
+        int size = 2 + (op == PRESS ? entrySize(command) : 0);
+        if (size > 0xFFFF) {
+            throw new IllegalArgumentException("Command too large to journal: " + size + " bytes");
+        }
+        return size;
+    }
+
+    // Snapshot layout: 8 bytes generation of the journal that follows it, 4 bytes
+    // home state, 2 bytes undo count, 2 bytes redo count, then the history entries.
+    // The next journal is created first and the snapshot is moved into place
+    // atomically, so a crash at any step leaves a snapshot and a journal that match;
+    // only then is the old journal deleted.
+    public void snapshot(UndoHistory history) {
+        List<Command> entries = history.entries();
+        int size = 16;
+        for (Command command : entries) {
+            size += entrySize(command);
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        long next = generation + 1;
+        FileChannel nextChannel = null;
+        try {
+            channel.force(false);
+            nextChannel = FileChannel.open(journalFile(directory, next),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            out.putLong(next);
+            out.putInt(home.snapshot());
+            out.putShort((short) history.undoSize());
+            out.putShort((short) history.redoSize());
+            for (Command command : entries) {
+                encodeEntry(command, out);
+            }
+            out.flip();
+
+            Path temp = snapshotFile.resolveSibling(SNAPSHOT_FILE + ".tmp");
+            try (FileChannel file = FileChannel.open(temp,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (out.hasRemaining()) {
+                    file.write(out);
+                }
+                file.force(false);
+            }
+            Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (nextChannel != null) {
+                try {
+                    nextChannel.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw new UncheckedIOException("Failed writing home snapshot", e);
+        }
+
+        FileChannel old = channel;
+        long oldGeneration = generation;
+        channel = nextChannel;
+        generation = next;
+        position = 0;
+        sinceSnapshot = 0;
+        try {
+            old.close();
+            Files.deleteIfExists(journalFile(directory, oldGeneration));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed deleting old command journal", e);
+        }
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed closing command journal", e);
+        }
+    }
+
+    // Rebuilds Home state and undo history from the last snapshot plus the journal tail.
+    // A torn record at the end (crash mid-write) is cut off. The returned Controller
+    // keeps journaling to the same directory.
+    public static Controller recover(Path directory, Home home, int historyDepth, int snapshotInterval) {
+        UndoHistory history = new UndoHistory(historyDepth);
+        long generation = 0;
+        int state = 0;
+
+        try {
+            Path snapshot = directory.resolve(SNAPSHOT_FILE);
+            if (Files.exists(snapshot)) {
+                ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+                generation = in.getLong();
+                state = in.getInt();
+                int undoCount = in.getShort() & 0xFFFF;
+                int redoCount = in.getShort() & 0xFFFF;
+                for (int i = 0; i < undoCount + redoCount; i++) {
+                    history.push(decodeEntry(in, home));
+                }
+                for (int i = 0; i < redoCount; i++) {
+                    history.undo();
+                }
+            }
+
+            Path journalFile = journalFile(directory, generation);
+            if (Files.exists(journalFile)) {
+                try (FileChannel file = FileChannel.open(journalFile,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    long size = file.size();
+                    ByteBuffer tail = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    long valid = 0;
+
+                    while (tail.remaining() >= 2) {
+                        int length = tail.getShort(tail.position()) & 0xFFFF;
+                        if (tail.remaining() < 2 + length || length < 2) {
+                            break;
+                        }
+                        tail.position(tail.position() + 2);
+                        byte op = tail.get();
+                        state = tail.get() & 0xFF;
+                        if (op == PRESS) {
+                            history.push(decodeEntry(tail, home));
+                        } else if (op == UNDO) {
+                            history.undo();
+                        } else if (op == REDO) {
+                            history.redo();
+                        }
+                        valid += 2 + length;
+                    }
+
+                    if (valid < size) {
+                        file.truncate(valid);
+                    }
+                }
+            }
+
+            // Left behind by a crash between creating the next journal and deleting the old one
+            if (Files.isDirectory(directory)) {
+                try (DirectoryStream<Path> journals = Files.newDirectoryStream(directory, JOURNAL_GLOB)) {
+                    for (Path stale : journals) {
+                        if (!stale.equals(journalFile)) {
+                            Files.delete(stale);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed recovering from " + directory, e);
+        }
+
+        home.restore(state);
+        return new Controller(history, new CommandJournal(directory, home, snapshotInterval, generation));
+    }
+
+    private static Path journalFile(Path directory, long generation) {
+        return directory.resolve("commands-" + generation + ".journal");
+    }
+
+    // Generation named by the directory's snapshot, 0 if there is none yet
+    private static long readGeneration(Path directory) {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) {
+            return 0;
+        }
+        try {
+            return ByteBuffer.wrap(Files.readAllBytes(snapshot)).getLong();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read snapshot in " + directory, e);
+        }
+    }
+
+    private static int entrySize(Command command) {
+        return CommandCodec.canEncode(command) ? CommandCodec.encodedSize(command) : 1;
+    }
+
+    private static void encodeEntry(Command command, ByteBuffer out) {
+        if (CommandCodec.canEncode(command)) {
+            CommandCodec.encode(command, out);
+        } else {
+            out.put(OPAQUE);
+        }
+    }
+
+    private static Command decodeEntry(ByteBuffer in, Home home) {
+        if (in.get(in.position()) == OPAQUE) {
+            in.get();
+            return NO_OP;
+        }
+        return CommandCodec.decode(in, home);
+    }
+
+}
+
+// ===================== ASYNC EXECUTOR =====================
+// One mailbox per Home: commands for the same home run one at a time
+// (single writer, so its Controller needs no locking) while different
+// homes are drained in parallel on a shared pool. A mailbox idle for
+// idleMillis is dropped together with its undo history.
+class HomeCommandExecutor implements AutoCloseable {
+
+    static final long DEFAULT_IDLE_MILLIS = 60_000;
+
+    // Queued by undo(); runs Controller.undo() on the mailbox thread
+    private static final Command UNDO = new Command() {
+        public void execute() {
+        }
+
+        public void undo() {
+        }
+    };
+
+    private final ScheduledExecutorService pool;
+    private final long coalesceWindowMillis;
+    private final long idleMillis;
+    private final Map<Home, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public HomeCommandExecutor(int threads, long coalesceWindowMillis) {
+        this(threads, coalesceWindowMillis, DEFAULT_IDLE_MILLIS);
+    }
+
+    public HomeCommandExecutor(int threads, long coalesceWindowMillis, long idleMillis) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads must be positive");
+        }
+        if (coalesceWindowMillis < 0 || idleMillis < 0) {
+            throw new IllegalArgumentException("Window and idle time can't be negative");
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads);
+        executor.setRemoveOnCancelPolicy(true);
+        this.pool = executor;
+        this.coalesceWindowMillis = coalesceWindowMillis;
+        this.idleMillis = idleMillis;
+    }
+
+    // Enqueue a command; the first command of a batch opens the coalescing window
+    public void submit(Home home, Command command) {
+        if (closed) {
+            throw new IllegalStateException("Executor is closed");
+        }
+        // A mailbox retired between lookup and offer refuses the command; take a fresh one
+        while (!mailboxes.computeIfAbsent(home, Mailbox::new).offer(command)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    // Undoes the home's last command on its mailbox thread, after anything queued before it
+    public void undo(Home home) {
+        submit(home, UNDO);
+    }
+
+    public int getMailboxCount() {
+        return mailboxes.size();
+    }
+
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    // Commands that threw; the rest of their batch still runs
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    // Runs every pending batch, then stops the pool
+    @Override
+    public void close() {
+        closed = true;
+        pool.shutdown();
+        // Pending batches still run; idle checks would only hold up termination
+        for (Mailbox mailbox : mailboxes.values()) {
+            mailbox.cancelRetire();
+        }
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Last writer wins per device: only the final switch of each device
+    // survives, since Home sets state (it doesn't toggle) and the final
+    // switch alone decides where the device ends up.
+    // Any other command (e.g. a macro or an undo) is a barrier nothing is coalesced across.
+    static List<Command> coalesce(List<Command> batch) {
+        Command[] kept = batch.toArray(new Command[0]);
+        int[] pending = new int[Device.values().length];
+        Arrays.fill(pending, -1);
+
+        for (int i = 0; i < kept.length; i++) {
+            if (!(kept[i] instanceof DeviceCommand)) {
+                Arrays.fill(pending, -1);
+                continue;
+            }
+            int slot = ((DeviceCommand) kept[i]).device().ordinal();
+            if (pending[slot] >= 0) {
+                kept[pending[slot]] = null;
+            }
+            pending[slot] = i;
+        }
+
+        List<Command> result = new ArrayList<>(kept.length);
+        for (Command command : kept) {
+            if (command != null) {
+                result.add(command);
+            }
+        }
+        return result;
+    }
+
+    private final class Mailbox implements Runnable {
+        private final Home home;
+        private final Queue<Command> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Controller controller = new Controller();
+        private volatile long lastActiveNanos = System.nanoTime();
+        private volatile ScheduledFuture<?> retireCheck;
+        // Guarded by this; once set the mailbox is out of the map and takes nothing
+        private boolean retired;
+
+        Mailbox(Home home) {
+            this.home = home;
+        }
+
+        boolean offer(Command command) {
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                queue.add(command);
+            }
+            schedule();
+            return true;
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    pool.schedule(this, coalesceWindowMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Executor closed meanwhile: finish the queue on this thread
+                    run();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<Command> batch = new ArrayList<>();
+                Command command;
+                while ((command = queue.poll()) != null) {
+                    batch.add(command);
+                }
+
+                List<Command> toRun = coalesce(batch);
+                coalesced.addAndGet(batch.size() - toRun.size());
+                for (Command c : toRun) {
+                    try {
+                        if (c == UNDO) {
+                            controller.undo();
+                        } else {
+                            controller.press(c);
+                        }
+                        executed.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            } finally {
+                // Release the mailbox even if something above threw; pick up anything that arrived meanwhile
+                lastActiveNanos = System.nanoTime();
+                scheduled.set(false);
+                if (!queue.isEmpty()) {
+                    schedule();
+                } else if (!closed) {
+                    try {
+                        retireCheck = pool.schedule(this::retireIfIdle, idleMillis, TimeUnit.MILLISECONDS);
+                        if (closed) {
+                            cancelRetire();
+                        }
+                    } catch (RejectedExecutionException e) {
+                        // Closing: nothing left to retire for
+                    }
+                }
+            }
+        }
+
+        void cancelRetire() {
+            ScheduledFuture<?> check = retireCheck;
+            if (check != null) {
+                check.cancel(false);
+            }
+        }
+
+        private void retireIfIdle() {
+            synchronized (this) {
+                if (retired || scheduled.get() || !queue.isEmpty()
+                        || System.nanoTime() - lastActiveNanos < TimeUnit.MILLISECONDS.toNanos(idleMillis)) {
+                    return;
+                }
+                retired = true;
+            }
+            mailboxes.remove(home, this);
+        }
+    }
+}
+
+// ===================== CONTROLLER HUB =====================
+// Manages many homes in one JVM. Homes are sharded by id across a fixed
+// set of event-loop threads; each shard owns its homes and controllers
+// outright (single writer), so no per-home locking is needed.
+// Commands are routed as factories (e.g. LightOn::new) and bound to the
+// shard-owned Home when they run.
+class ControllerHub implements AutoCloseable {
+
+    private final Shard[] shards;
+    private final int historyDepth;
+
+    public ControllerHub(int shardCount, int historyDepth) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive");
+        }
+        if (historyDepth <= 0) {
+            throw new IllegalArgumentException("History depth must be positive");
+        }
+        this.historyDepth = historyDepth;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    // Runs the command on the home's shard; the home is created on first use
+    public void submit(long homeId, Function<Home, ? extends Command> command) {
+        shardFor(homeId).enqueue(new Task(homeId, command));
+    }
+
+    public void undo(long homeId) {
+        shardFor(homeId).enqueue(new Task(homeId, null));
+    }
+
+    // Blocks until every submitted task has run
+    public void awaitIdle() {
+        for (Shard shard : shards) {
+            while (shard.processed.get() < shard.submitted.get()) {
+                LockSupport.parkNanos(100_000);
+            }
+        }
+    }
+
+    public List<ShardMetrics> metrics() {
+        List<ShardMetrics> result = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            result.add(shard.metrics());
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.thread);
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Shard shardFor(long homeId) {
+        // Spread sequential ids before picking a shard
+        long h = homeId * 0x9E3779B97F4A7C15L;
+        return shards[(int) Math.floorMod(h ^ (h >>> 32), (long) shards.length)];
+    }
+
+    private static final class Task {
+        final long homeId;
+        final Function<Home, ? extends Command> command;
+        final long enqueuedNanos = System.nanoTime();
+
+        Task(long homeId, Function<Home, ? extends Command> command) {
+            this.homeId = homeId;
+            this.command = command;
+        }
+    }
+
+    // Home plus its controller; history depth is kept small since there are many.
+    // The controller (and its history) comes with the first command.
+    private static final class HomeSlot {
+        final Home home = new Home(false);
+        private final int historyDepth;
+        private Controller controller;
+
+        HomeSlot(int historyDepth) {
+            this.historyDepth = historyDepth;
+        }
+
+        Controller controller() {
+            if (controller == null) {
+                controller = new Controller(new UndoHistory(historyDepth));
+            }
+            return controller;
+        }
+
+        void undo() {
+            if (controller != null) {
+                controller.undo();
+            }
+        }
+    }
+
+    private final class Shard implements Runnable {
+        private final int id;
+        private final Queue<Task> queue = new ConcurrentLinkedQueue<>();
+        private final Map<Long, HomeSlot> homes = new HashMap<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicInteger homeCount = new AtomicInteger();
+        // Latency from submit to completion, see ShardMetrics.bucketOf
+        private final AtomicLongArray latency = new AtomicLongArray(ShardMetrics.BUCKETS);
+
+        Shard(int id) {
+            this.id = id;
+            this.thread = new Thread(this, "controller-hub-shard-" + id);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        void enqueue(Task task) {
+            submitted.incrementAndGet();
+            queue.add(task);
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                Task task = queue.poll();
+                if (task == null) {
+                    LockSupport.parkNanos(50_000);
+                    continue;
+                }
+                process(task);
+            }
+        }
+
+        private void process(Task task) {
+            HomeSlot slot = homes.get(task.homeId);
+            // Undo on a home never commanded has nothing to do: no slot for it
+            if (slot == null && task.command != null) {
+                slot = new HomeSlot(historyDepth);
+                homes.put(task.homeId, slot);
+                homeCount.lazySet(homes.size());
+            }
+            try {
+                if (task.command == null) {
+                    if (slot != null) {
+                        slot.undo();
+                    }
+                } else {
+                    slot.controller().press(task.command.apply(slot.home));
+                }
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+            }
+
+            // Single writer: plain read-modify-write is enough
+            int bucket = ShardMetrics.bucketOf(System.nanoTime() - task.enqueuedNanos);
+            latency.lazySet(bucket, latency.get(bucket) + 1);
+            processed.lazySet(processed.get() + 1);
+        }
+
+        ShardMetrics metrics() {
+            long[] histogram = new long[latency.length()];
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = latency.get(i);
+            }
+            long done = processed.get();
+            return new ShardMetrics(id, homeCount.get(), done, failed.get(),
+                    submitted.get() - done, histogram);
+        }
+    }
+}
+
+// Point-in-time view of one hub shard
+// Latency buckets are log-linear: each power of two is split into 8
+// sub-buckets, so a percentile is reported within 12.5% of the true value.
+final class ShardMetrics {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final int shard;
+    private final int homes;
+    private final long processed;
+    private final long failed;
+    private final long queued;
+    private final long[] latencyHistogram;
+
+    ShardMetrics(int shard, int homes, long processed, long failed, long queued, long[] latencyHistogram) {
+        this.shard = shard;
+        this.homes = homes;
+        this.processed = processed;
+        this.failed = failed;
+        this.queued = queued;
+        this.latencyHistogram = latencyHistogram;
+    }
+
+    public int getShard() { return shard; }
+    public int getHomes() { return homes; }
+    public long getProcessed() { return processed; }
+    public long getFailed() { return failed; }
+    public long getQueued() { return queued; }
+
+    // Values below 8 ns get a bucket each; above that, the top 4 bits pick the bucket
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) - SUB_BUCKETS;
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Exclusive upper bound (ns) of a bucket
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS);
+    }
+
+    // Upper bound (ns) of the histogram bucket holding the given percentile
+    public long latencyPercentileNanos(double percentile) {
+        long total = 0;
+        for (long count : latencyHistogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < latencyHistogram.length; i++) {
+            seen += latencyHistogram[i];
+            if (seen >= target) {
+                return upperBound(i);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return "Shard{" +
+                "id=" + shard +
+                ", homes=" + homes +
+                ", processed=" + processed +
+                ", failed=" + failed +
+                ", queued=" + queued +
+                ", p50<=" + latencyPercentileNanos(50) / 1000 + "us" +
+                ", p99<=" + latencyPercentileNanos(99) / 1000 + "us" +
+                '}';
+    }
+}
+
+// ===================== HUB LOAD TEST =====================
+// Drives a ControllerHub with one producer per shard and reports throughput
+// for 1, 2, 4, ... shards up to maxShards, whatever the core count; with a
+// core per shard and producer the rate grows ~linearly, with fewer the extra
+// shards only time-share
+class ControllerHubLoadTest {
+
+    private static final List<Function<Home, Command>> COMMANDS = Arrays.asList(
+            LightOn::new, LightOff::new, FanOn::new, FanOff::new, AcOn::new, AcOff::new);
+
+    static void run(int homes, int commandsPerShard, int maxShards) {
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors());
+        for (int shards = 1; shards <= maxShards; shards *= 2) {
+            long total = (long) commandsPerShard * shards;
+            try (ControllerHub hub = new ControllerHub(shards, 4)) {
+                Thread[] producers = new Thread[shards];
+                long start = System.nanoTime();
+                for (int p = 0; p < shards; p++) {
+                    final int seed = p;
+                    producers[p] = new Thread(() -> {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < commandsPerShard; i++) {
+                            hub.submit(random.nextInt(homes), COMMANDS.get(random.nextInt(COMMANDS.size())));
+                        }
+                    });
+                    producers[p].start();
+                }
+                for (Thread producer : producers) {
+                    try {
+                        producer.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                hub.awaitIdle();
+                long elapsed = System.nanoTime() - start;
+
+                long worstP99 = 0;
+                for (ShardMetrics m : hub.metrics()) {
+                    worstP99 = Math.max(worstP99, m.latencyPercentileNanos(99));
+                }
+                System.out.printf("shards=%d commands=%d throughput=%,d cmd/s worst p99<=%.1fus%n",
+                        shards, total, (long) (total * 1e9 / elapsed), worstP99 / 1000.0);
+            }
+        }
+    }
+}
+
+// ===================== COMMAND SCHEDULER =====================
+// Hierarchical timing wheel: 4 levels of 256 slots, level L slot covers
+// 256^L ticks. A timer goes to the lowest level whose higher digits match
+// the current tick, so insert and fire are O(1); when a lower wheel wraps,
+// the matching slot of the level above is cascaded down.
+// Timers may be scheduled from any thread; the wheel itself is only touched
+// by the thread calling advanceTo().
+class CommandScheduler {
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Timer[][] wheel = new Timer[LEVELS][SLOTS];
+    private final Queue<Timer> pending = new ConcurrentLinkedQueue<>();
+    private final List<Timer> due = new ArrayList<>();
+    private Timer overflow;
+    private long currentTick;
+
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong fired = new AtomicLong();
+
+    public CommandScheduler(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+    }
+
+    public Timer schedule(long atMillis, Runnable action) {
+        return schedule(atMillis, 0, 0, action);
+    }
+
+    // Fires at atMillis plus a deterministic offset in [0, jitterMillis] derived
+    // from key, so many timers for the same time (one per home) are spread out
+    public Timer schedule(long atMillis, long jitterMillis, long key, Runnable action) {
+        if (jitterMillis < 0) {
+            throw new IllegalArgumentException("Jitter can't be negative");
+        }
+        long offset = 0;
+        if (jitterMillis > 0) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            offset = Math.floorMod(h ^ (h >>> 31), jitterMillis + 1);
+        }
+        // Round the due tick up: advanceTo() reaches tick k at startMillis + k * tickMillis,
+        // so rounding down would fire up to one tick before atMillis
+        long dueTick = -Math.floorDiv(startMillis - atMillis - offset, tickMillis);
+        Timer timer = new Timer(dueTick, action);
+        pending.add(timer);
+        scheduled.incrementAndGet();
+        return timer;
+    }
+
+    // Schedules the same command for every home on a hub (e.g. Good Morning at 07:00)
+    public void scheduleForHomes(ControllerHub hub, long[] homeIds, long atMillis, long jitterMillis,
+                                 Function<Home, ? extends Command> command) {
+        for (long homeId : homeIds) {
+            schedule(atMillis, jitterMillis, homeId, () -> hub.submit(homeId, command));
+        }
+    }
+
+    // Moves the wheel forward to nowMillis, firing everything that became due
+    public void advanceTo(long nowMillis) {
+        long target = (nowMillis - startMillis) / tickMillis;
+        drainPending();
+        fireDue();
+        while (currentTick < target) {
+            currentTick++;
+            for (int level = LEVELS - 1; level >= 1; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK));
+                }
+            }
+            if ((currentTick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+                Timer list = overflow;
+                overflow = null;
+                reinsert(list);
+            }
+
+            int slot = (int) (currentTick & SLOT_MASK);
+            Timer list = wheel[0][slot];
+            wheel[0][slot] = null;
+            for (Timer t = list; t != null; t = t.next) {
+                fire(t);
+            }
+            drainPending();
+            fireDue();
+        }
+    }
+
+    // Runs advanceTo(System.currentTimeMillis()) every tick on a daemon thread
+    public Thread startRealTime() {
+        Thread thread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                advanceTo(System.currentTimeMillis());
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(tickMillis));
+            }
+        }, "command-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public long getScheduledCount() {
+        return scheduled.get();
+    }
+
+    public long getFiredCount() {
+        return fired.get();
+    }
+
+    private void drainPending() {
+        Timer timer;
+        while ((timer = pending.poll()) != null) {
+            insert(timer);
+        }
+    }
+
+    private void insert(Timer timer) {
+        long deadline = timer.deadlineTick;
+        if (deadline <= currentTick) {
+            due.add(timer);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            int higher = SLOT_BITS * (level + 1);
+            if ((deadline >>> higher) == (currentTick >>> higher)) {
+                int slot = (int) ((deadline >>> (SLOT_BITS * level)) & SLOT_MASK);
+                timer.next = wheel[level][slot];
+                wheel[level][slot] = timer;
+                return;
+            }
+        }
+        timer.next = overflow;
+        overflow = timer;
+    }
+
+    private void cascade(int level, int slot) {
+        Timer list = wheel[level][slot];
+        wheel[level][slot] = null;
+        reinsert(list);
+    }
+
+    private void reinsert(Timer list) {
+        while (list != null) {
+            Timer next = list.next;
+            list.next = null;
+            insert(list);
+            list = next;
+        }
+    }
+
+    private void fireDue() {
+        for (int i = 0; i < due.size(); i++) {
+            fire(due.get(i));
+        }
+        due.clear();
+    }
+
+    private void fire(Timer timer) {
+        if (timer.cancelled) {
+            return;
+        }
+        fired.incrementAndGet();
+        timer.action.run();
+    }
+
+    // Handle to a scheduled action; doubles as the wheel's list node
+    static final class Timer {
+        private final long deadlineTick;
+        private final Runnable action;
+        private Timer next;
+        private volatile boolean cancelled;
+
+        private Timer(long deadlineTick, Runnable action) {
+            this.deadlineTick = deadlineTick;
+            this.action = action;
+        }
+
+        public void cancel() {
+            cancelled = true;
         }
     }
 }
 
 // ===================== CLIENT =====================
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        Path workDir = Files.createTempDirectory("smart-home");
+        try {
+            run(workDir);
+        } finally {
+            deleteRecursively(workDir);
+        }
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void run(Path workDir) {
 
         Home home = new Home();
 
@@ -251,5 +1959,220 @@ public class Main {
 
         System.out.println("\nUndo Good Night");
         controller.undo();
+
+        // Same instance twice: each press keeps its own prior state
+        System.out.println("\nPress Light ON twice, undo twice");
+        controller.press(lightOn);
+        controller.press(lightOn);
+        controller.undo();
+        controller.undo();
+        System.out.println("Lights on after undo: " + home.isOn(Device.LIGHT));
+
+        System.out.println("No-op switches skipped: " + home.getSkippedCount());
+
+        System.out.println("\n=== Async Executor (many homes) ===");
+        HomeCommandExecutor executor = new HomeCommandExecutor(4, 50);
+        Home kitchen = new Home();
+        Home bedroom = new Home();
+
+        // LightOn then LightOff inside the window cancel out
+        executor.submit(kitchen, new LightOn(kitchen));
+        executor.submit(kitchen, new LightOff(kitchen));
+        executor.submit(kitchen, new FanOn(kitchen));
+        executor.submit(bedroom, new AcOn(bedroom));
+        executor.submit(bedroom, new AcOn(bedroom));
+        executor.close();
+
+        System.out.println("Executed: " + executor.getExecutedCount() +
+                ", coalesced away: " + executor.getCoalescedCount());
+
+        // Idle mailboxes are dropped; close() doesn't wait for their idle checks
+        HomeCommandExecutor shortLived = new HomeCommandExecutor(2, 5, 50);
+        Home hallway = new Home(false);
+        shortLived.submit(hallway, new LightOn(hallway));
+        shortLived.undo(hallway);
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+        System.out.println("Mailboxes after idle: " + shortLived.getMailboxCount() +
+                ", hallway light on: " + hallway.isOn(Device.LIGHT));
+        shortLived.submit(hallway, new FanOn(hallway));
+        long closeStart = System.nanoTime();
+        shortLived.close();
+        System.out.println("Closed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - closeStart) + " ms");
+
+        // Coalescing must leave every device where the full batch would
+        Random random = new Random(7);
+        Device[] devices = Device.values();
+        int mismatches = 0;
+        for (int trial = 0; trial < 10_000; trial++) {
+            int startState = random.nextInt(1 << devices.length);
+            Home direct = new Home(false);
+            Home merged = new Home(false);
+            direct.restore(startState);
+            merged.restore(startState);
+            List<Command> directBatch = new ArrayList<>();
+            List<Command> mergedBatch = new ArrayList<>();
+            for (int i = random.nextInt(8); i > 0; i--) {
+                Device device = devices[random.nextInt(devices.length)];
+                boolean on = random.nextBoolean();
+                directBatch.add(CommandCodec.deviceCommand(direct, device, on, false));
+                mergedBatch.add(CommandCodec.deviceCommand(merged, device, on, false));
+            }
+            directBatch.forEach(Command::execute);
+            HomeCommandExecutor.coalesce(mergedBatch).forEach(Command::execute);
+            if (direct.snapshot() != merged.snapshot()) {
+                mismatches++;
+            }
+        }
+        System.out.println("Coalesced vs full batch state mismatches: " + mismatches + " of 10000");
+
+        System.out.println("\n=== Bounded Undo History ===");
+        try (HistorySpill spill = new HistorySpill(workDir.resolve("undo-history.spill"), home)) {
+            // Depth 2: the oldest of three commands spills to disk
+            Controller hub = new Controller(new UndoHistory(2, spill));
+            hub.press(new LightOn(home));
+            hub.press(new FanOn(home));
+            hub.press(new AcOn(home));
+
+            System.out.println("Undo x3");
+            hub.undo();
+            hub.undo();
+            hub.undo();
+
+            System.out.println("Redo");
+            hub.redo();
+        }
+
+        System.out.println("\n=== Parallel Good Night ===");
+        ExecutorService devicePool = Executors.newFixedThreadPool(4);
+        // Fan and AC are independent; lights go off only after both are on
+        Command parallelGoodNight = new ParallelMacroCommand.Builder(devicePool)
+                .add("fan", new FanOn(home))
+                .add("ac", new AcOn(home))
+                .add("lights", new LightOff(home), "fan", "ac")
+                .build();
+        controller.press(parallelGoodNight);
+
+        System.out.println("Undo Parallel Good Night");
+        controller.undo();
+
+        // A failing device rolls back everything that already ran
+        Command broken = new ParallelMacroCommand.Builder(devicePool)
+                .add("fan", new FanOn(home))
+                .add("gateway", new Command() {
+                    public void execute() {
+                        throw new IllegalStateException("Gateway timeout");
+                    }
+
+                    public void undo() {
+                    }
+                }, "fan")
+                .build();
+        try {
+            controller.press(broken);
+        } catch (IllegalStateException e) {
+            System.out.println("Error: " + e.getMessage() + " (" + e.getCause().getMessage() + ")");
+        }
+
+        // Undo keeps going past a device that fails to revert
+        boolean fanBefore = home.isOn(Device.FAN);
+        Command jammed = new ParallelMacroCommand.Builder(devicePool)
+                .add("fan", new FanOn(home))
+                .add("blinds", new Command() {
+                    public void execute() {
+                    }
+
+                    public void undo() {
+                        throw new IllegalStateException("Blinds jammed");
+                    }
+                }, "fan")
+                .build();
+        jammed.execute();
+        try {
+            jammed.undo();
+        } catch (IllegalStateException e) {
+            System.out.println("Error: " + e.getMessage() + " (" + e.getCause().getMessage() +
+                    "), fan restored: " + (home.isOn(Device.FAN) == fanBefore));
+        }
+        devicePool.shutdown();
+
+        System.out.println("\n=== Journal and Crash Recovery ===");
+        Path journalDir = workDir.resolve("home-journal");
+        Home livingRoom = new Home();
+        CommandJournal journal = new CommandJournal(journalDir, livingRoom, 4);
+        Controller journaled = new Controller(new UndoHistory(16), journal);
+        journaled.press(new LightOn(livingRoom));
+        journaled.press(new FanOn(livingRoom));
+        journaled.press(new AcOn(livingRoom));
+        journaled.undo();
+        journaled.press(new MacroCommand(
+                Arrays.asList(new LightOff(livingRoom), new FanOff(livingRoom))));
+
+        // A 10k-command macro needs a record larger than the reusable buffer
+        List<Command> bulk = new ArrayList<>(Collections.nCopies(9_999, new FanOff(livingRoom)));
+        bulk.add(new AcOn(livingRoom));
+        journaled.press(new MacroCommand(bulk));
+        // Too large for a journal record: rejected before anything is switched
+        try {
+            Command half = new MacroCommand(Collections.nCopies(40_000, new LightOn(livingRoom)));
+            journaled.press(new MacroCommand(Arrays.asList(half, half)));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Rejected: " + e.getMessage() + ", lights: " + livingRoom.isOn(Device.LIGHT));
+        }
+        journal.close();
+        try (Stream<Path> files = Files.list(journalDir)) {
+            // Rotated at the snapshot after 4 records: only the current journal is left
+            System.out.println("Journal files: " + files.map(f -> f.getFileName().toString()).sorted().toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // Simulated restart: fresh Home, state and history come from disk
+        Home restarted = new Home();
+        Controller recovered = CommandJournal.recover(journalDir, restarted, 16, 4);
+        System.out.println("Recovered state -> lights: " + restarted.isOn(Device.LIGHT) +
+                ", fan: " + restarted.isOn(Device.FAN) +
+                ", ac: " + restarted.isOn(Device.AC));
+        System.out.println("Undo after recovery");
+        recovered.undo();
+
+        System.out.println("\n=== Controller Hub (100k homes) ===");
+        try (ControllerHub hub = new ControllerHub(2, 4)) {
+            for (long homeId = 0; homeId < 100_000; homeId++) {
+                hub.submit(homeId, LightOn::new);
+            }
+            hub.undo(7);
+            // Homes never commanded: nothing to undo and no slot is created
+            for (long homeId = 100_000; homeId < 200_000; homeId++) {
+                hub.undo(homeId);
+            }
+            hub.awaitIdle();
+            for (ShardMetrics m : hub.metrics()) {
+                System.out.println(m);
+            }
+        }
+        ControllerHubLoadTest.run(100_000, 250_000, 8);
+
+        System.out.println("\n=== Scheduled Good Morning (50k homes) ===");
+        long midnight = 0;
+        long sevenAm = midnight + TimeUnit.HOURS.toMillis(7);
+        long[] homeIds = new long[50_000];
+        for (int i = 0; i < homeIds.length; i++) {
+            homeIds[i] = i;
+        }
+        // Simulated clock with 1 second ticks; arrivals spread over 5 minutes
+        CommandScheduler scheduler = new CommandScheduler(1000, midnight);
+        try (ControllerHub hub = new ControllerHub(2, 4)) {
+            scheduler.scheduleForHomes(hub, homeIds, sevenAm, TimeUnit.MINUTES.toMillis(5),
+                    h -> new MacroCommand(Arrays.asList(new LightOn(h), new FanOff(h), new AcOff(h))));
+
+            scheduler.advanceTo(sevenAm - 1);
+            System.out.println("Fired before 07:00: " + scheduler.getFiredCount());
+            scheduler.advanceTo(sevenAm + TimeUnit.SECONDS.toMillis(150));
+            System.out.println("Fired by 07:02:30: " + scheduler.getFiredCount());
+            scheduler.advanceTo(sevenAm + TimeUnit.MINUTES.toMillis(5));
+            System.out.println("Fired by 07:05:00: " + scheduler.getFiredCount() +
+                    " of " + scheduler.getScheduledCount());
+            hub.awaitIdle();
+        }
     }
 }
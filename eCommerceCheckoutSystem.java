@@ -10,6 +10,34 @@ Builder → Order creation
 Strategy → Discount calculation
 Command → Checkout steps with undo
 
+Promotions (tiered / flat / percentage) are loaded from config and compiled
+into sorted threshold tables evaluated with binary search
+
+Concurrent checkouts run as sagas: each order has its own compensation log,
+steps have a timeout and are retried before the saga compensates
+
+Stock is reserved per SKU with lock-free striped counters as a checkout step;
+undo releases it and abandoned reservations expire through a timing wheel
+
+Carts hold line items (SKU, quantity, unit price in minor units) and are
+priced by a staged pipeline: item discounts → cart discount → tax → shipping
+An order keeps a frozen copy of its cart; its amount must equal the cart subtotal
+
+OrderBuilder can be validated without exceptions: validate() returns
+OrderError bits and tryBuild() returns null
+
+Money is a long amount in minor units plus a currency code; orders, discounts
+and reports use it, so totals are exact and conversions use cached rates
+
+Single-use coupons are checked against a bloom filter, then redeemed with a
+CAS in an off-heap hash table; undoing the checkout step un-redeems them
+
+Checkout steps can be wrapped in TimedCommand to record per-step latency
+histograms, success/failure/undo counts and in-flight gauges
+
+Placed orders are kept in an on-disk history: one append-only segment file
+per time partition, with sorted userId / orderId index files per segment
+
 
 +-----------------------------+
 |            Order            |
@@ -17,16 +45,17 @@ Command → Checkout steps with undo
 | - orderId: String           |
 | - userId: String            |
 | - items: List<String>       |
-| - amount: int               |
+| - amount: long (minor)      |
 | - shippingAddress: String   |
 | - billingAddress: String    |
 | - couponCode: String        |
 | - giftWrap: boolean         |
 | - paymentMethod: String     |
 | - currency: String          |
+| - cart: Cart                |
 +-----------------------------+
 | + getOrderId(): String      |
-| + getAmount(): int          |
+| + getAmount(): Money        |
 | + getPaymentMethod():String|
 +-----------------------------+
               ▲
@@ -38,7 +67,7 @@ Command → Checkout steps with undo
 | - orderId: String           |
 | - userId: String            |
 | - items: List<String>       |
-| - amount: int               |
+| - amount: long (minor)      |
 | - shippingAddress: String   |
 | - billingAddress: String    |
 | - couponCode: String        |
@@ -52,17 +81,20 @@ Command → Checkout steps with undo
 | + setGiftWrap()             |
 | + setPaymentMethod()        |
 | + setCurrency()             |
+| + validate(): int           |
 | + build(): Order            |
+| + tryBuild(): Order         |
 +-----------------------------+
 
 
 ================== STRATEGY PATTERN ==================
 
-+-------------------------------+
-|      DiscountStrategy         |
-+-------------------------------+
-| + DiscountProcess(amount)    |
-+-------------------------------+
++-------------------------------------+
+|          DiscountStrategy           |
++-------------------------------------+
+| + DiscountProcess(amount, currency, |
+|     result): DiscountResult         |
++-------------------------------------+
               ▲
    -----------------------------------------
    |           |             |             |
@@ -76,6 +108,15 @@ Command → Checkout steps with undo
 | - discountStrategy          |
 +-----------------------------+
 | + discount(amount)          |
+| + discountAll(amounts, out) |
++-----------------------------+
+
++-----------------------------+
+|       DiscountResult        |
++-----------------------------+
+| - originalAmount: long      |
+| - total: long               |
+| - rule: DiscountRule        |
 +-----------------------------+
 
 
@@ -106,6 +147,7 @@ Command → Checkout steps with undo
 |     CheckoutProcessor       |
 +-----------------------------+
 | - history: Stack<Command>   |
+| - metrics: CheckoutMetrics  |
 +-----------------------------+
 | + executeCommand(cmd)       |
 | + rollback()                |
@@ -122,14 +164,259 @@ Command → Checkout steps with undo
 
 
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// ======================= MONEY =======================
+// An amount in minor units (paise, cents) of one currency. Immutable value:
+// equal amounts in the same currency are equal. The static long helpers do the
+// same arithmetic on bare minor units so hot loops needn't allocate Money.
+// Every operation is exact; overflow throws ArithmeticException.
+final class Money implements Comparable<Money> {
+    private static final Map<String, Integer> FRACTION_DIGITS = new ConcurrentHashMap<>();
+
+    private final long minor;
+    private final String currency;
+
+    private Money(long minor, String currency) {
+        this.minor = minor;
+        this.currency = currency;
+    }
+
+    public static Money of(long minor, String currency) {
+        return new Money(minor, Objects.requireNonNull(currency, "currency"));
+    }
+
+    // Parses a major-unit amount such as "1199.50"; more decimals than the currency allows is an error
+    public static Money parse(String major, String currency) {
+        long minor = new BigDecimal(major).movePointRight(fractionDigits(currency)).longValueExact();
+        return of(minor, currency);
+    }
+
+    public long getMinor() { return minor; }
+    public String getCurrency() { return currency; }
+
+    public Money plus(Money other) {
+        return new Money(add(minor, sameCurrency(other).minor), currency);
+    }
+
+    public Money minus(Money other) {
+        return new Money(subtract(minor, sameCurrency(other).minor), currency);
+    }
+
+    public Money times(long factor) {
+        return new Money(multiply(minor, factor), currency);
+    }
+
+    public Money percent(long basisPoints) {
+        return new Money(basisPoints(minor, basisPoints), currency);
+    }
+
+    private Money sameCurrency(Money other) {
+        if (!currency.equals(other.currency)) {
+            throw new IllegalArgumentException("Currency mismatch: " + currency + " vs " + other.currency);
+        }
+        return other;
+    }
+
+    // ---------- allocation-free helpers on minor units ----------
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    public static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    public static long multiply(long a, long factor) {
+        return Math.multiplyExact(a, factor);
+    }
+
+    // amount * basisPoints / 10_000, rounded half away from zero
+    public static long basisPoints(long amount, long basisPoints) {
+        return divideRounded(Math.multiplyExact(amount, basisPoints), 10_000);
+    }
+
+    static long divideRounded(long value, long divisor) {
+        long quotient = value / divisor;
+        long remainder = value % divisor;
+        if (Math.abs(remainder) * 2 >= divisor) {
+            quotient += value < 0 ? -1 : 1;
+        }
+        return quotient;
+    }
+
+    public static int fractionDigits(String currency) {
+        if (currency == null) {
+            return 2;
+        }
+        return FRACTION_DIGITS.computeIfAbsent(currency,
+                c -> Math.max(0, Currency.getInstance(c).getDefaultFractionDigits()));
+    }
+
+    // Minor units in one major unit: 100 for INR, 1 for JPY, 1000 for KWD
+    public static long minorPerMajor(String currency) {
+        long factor = 1;
+        for (int i = fractionDigits(currency); i > 0; i--) {
+            factor *= 10;
+        }
+        return factor;
+    }
+
+    // "INR 1122.00"; without a currency just the amount with two decimals
+    public static String format(long minor, String currency) {
+        String amount = BigDecimal.valueOf(minor, fractionDigits(currency)).toPlainString();
+        return currency == null ? amount : currency + " " + amount;
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(minor, sameCurrency(other).minor);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Money)) return false;
+        Money other = (Money) o;
+        return minor == other.minor && currency.equals(other.currency);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(minor) + currency.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return format(minor, currency);
+    }
+}
+
+// Conversion rates kept as fixed-point longs (rate x 10^8) in a dense matrix
+// indexed by currency, with the minor-unit scale difference folded in when a
+// rate is set. Converting is then a lookup, a multiply and one rounding.
+// Writes are rare and copy the matrix, so readers never lock.
+final class ExchangeRates {
+    private static final long RATE_SCALE = 100_000_000L;
+
+    private final Map<String, Integer> indexes = new ConcurrentHashMap<>();
+    private volatile long[][] rates = new long[0][0];
+
+    public synchronized void setRate(String from, String to, String rate) {
+        int f = indexOf(from);
+        int t = indexOf(to);
+        BigDecimal minorRate = new BigDecimal(rate)
+                .movePointRight(Money.fractionDigits(to) - Money.fractionDigits(from));
+        long[][] next = new long[indexes.size()][indexes.size()];
+        for (int i = 0; i < rates.length; i++) {
+            System.arraycopy(rates[i], 0, next[i], 0, rates[i].length);
+        }
+        next[f][t] = minorRate.movePointRight(8).setScale(0, RoundingMode.HALF_UP).longValueExact();
+        next[f][f] = RATE_SCALE;
+        next[t][t] = RATE_SCALE;
+        rates = next;
+    }
+
+    private int indexOf(String currency) {
+        Money.fractionDigits(currency); // rejects unknown codes
+        return indexes.computeIfAbsent(currency, c -> indexes.size());
+    }
+
+    public Money convert(Money amount, String to) {
+        if (amount.getCurrency().equals(to)) {
+            return amount;
+        }
+        return Money.of(convertMinor(amount.getMinor(), amount.getCurrency(), to), to);
+    }
+
+    // Allocation-free; rounds half away from zero to the target's minor unit
+    public long convertMinor(long minor, String from, String to) {
+        Integer f = indexes.get(from);
+        Integer t = indexes.get(to);
+        long[][] table = rates;
+        long rate = (f == null || t == null || f >= table.length || t >= table.length) ? 0 : table[f][t];
+        if (rate == 0) {
+            throw new IllegalArgumentException("No rate for " + from + " -> " + to);
+        }
+        long high = Math.multiplyHigh(minor, rate);
+        long low = minor * rate;
+        if ((high == 0 && low >= 0) || (high == -1 && low < 0)) {
+            return Money.divideRounded(low, RATE_SCALE);
+        }
+        // Product beyond 64 bits: fall back to exact decimal arithmetic
+        return BigDecimal.valueOf(minor).multiply(BigDecimal.valueOf(rate))
+                .divide(BigDecimal.valueOf(RATE_SCALE), 0, RoundingMode.HALF_UP)
+                .longValueExact();
+    }
+}
+
+// Exact running totals per currency for reports. Each currency has a LongAdder
+// of minor units, so concurrent writers never contend on one counter and
+// nothing is boxed per order. Totals past Long.MAX_VALUE are not supported.
+final class MoneyTotals {
+    private final Map<String, LongAdder> totals = new ConcurrentHashMap<>();
+    private final LongAdder count = new LongAdder();
+
+    public void add(long minor, String currency) {
+        totals.computeIfAbsent(currency, c -> new LongAdder()).add(minor);
+        count.increment();
+    }
+
+    public void add(Money amount) {
+        add(amount.getMinor(), amount.getCurrency());
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public Money total(String currency) {
+        LongAdder adder = totals.get(currency);
+        return Money.of(adder == null ? 0 : adder.sum(), currency);
+    }
+
+    // Grand total with every currency converted once, after summing
+    public Money totalIn(String currency, ExchangeRates rates) {
+        long sum = 0;
+        for (Map.Entry<String, LongAdder> entry : totals.entrySet()) {
+            sum = Money.add(sum, rates.convertMinor(entry.getValue().sum(), entry.getKey(), currency));
+        }
+        return Money.of(sum, currency);
+    }
+
+    public Set<String> currencies() {
+        return new TreeSet<>(totals.keySet());
+    }
+}
 
 // ======================= ORDER (BUILDER PATTERN) =======================
 class Order {
     private final String orderId;
     private final String userId;
     private final List<String> items;
-    private final int amount;
+    private final long amount;
 
     private final String shippingAddress;
     private final String billingAddress;
@@ -137,30 +424,64 @@ class Order {
     private final boolean giftWrap;
     private final String paymentMethod;
     private final String currency;
+    private final Cart cart;
 
     private Order(OrderBuilder builder) {
-        this.orderId = builder.orderId;
-        this.userId = builder.userId;
-        this.items = builder.items;
-        this.amount = builder.amount;
-        this.shippingAddress = builder.shippingAddress;
-        this.billingAddress = builder.billingAddress;
-        this.couponCode = builder.couponCode;
-        this.giftWrap = builder.giftWrap;
-        this.paymentMethod = builder.paymentMethod;
-        this.currency = builder.currency;
+        this(builder.orderId, builder.userId, builder.items, builder.amount, builder.currency,
+                builder.paymentMethod, builder.shippingAddress, builder.billingAddress,
+                builder.couponCode, builder.giftWrap, builder.cart);
+    }
+
+    private Order(String orderId, String userId, List<String> items, long amount, String currency,
+                  String paymentMethod, String shippingAddress, String billingAddress,
+                  String couponCode, boolean giftWrap, Cart cart) {
+        this.orderId = orderId;
+        this.userId = userId;
+        // Immutable copy; free when the caller already passes List.of(...)
+        this.items = List.copyOf(items);
+        this.amount = amount;
+        this.shippingAddress = shippingAddress;
+        this.billingAddress = billingAddress;
+        this.couponCode = couponCode;
+        this.giftWrap = giftWrap;
+        this.paymentMethod = paymentMethod;
+        this.currency = currency;
+        this.cart = cart;
+    }
+
+    // An order as it was stored, without today's validation rules: it was
+    // valid when placed, and history must stay readable when the rules change
+    static Order restore(String orderId, String userId, List<String> items, long amount, String currency,
+                         String paymentMethod, String shippingAddress, String billingAddress,
+                         String couponCode, boolean giftWrap) {
+        return new Order(orderId, userId, items, amount, currency, paymentMethod,
+                shippingAddress, billingAddress, couponCode, giftWrap, null);
     }
 
     public String getOrderId() { return orderId; }
-    public int getAmount() { return amount; }
+    public String getUserId() { return userId; }
+    public List<String> getItems() { return items; }
+    public Money getAmount() { return Money.of(amount, currency); }
+    public long getAmountMinor() { return amount; }
+    public String getCurrency() { return currency; }
     public String getPaymentMethod() { return paymentMethod; }
+    public Cart getCart() { return cart; }
+    public String getCouponCode() { return couponCode; }
+    public String getShippingAddress() { return shippingAddress; }
+    public String getBillingAddress() { return billingAddress; }
+    public boolean isGiftWrap() { return giftWrap; }
 
     // ---------- BUILDER ----------
+    // Either the constructor with mandatory fields (throws at once), or the
+    // no-arg one with setters so tryBuild() can report every missing field.
+    // A builder is short-lived: escape analysis removes it, so the Order is
+    // the only allocation per build. Order copies everything it keeps, so
+    // changing the builder never affects orders already built.
     static class OrderBuilder {
-        private final String orderId;
-        private final String userId;
-        private final List<String> items;
-        private final int amount;
+        private String orderId;
+        private String userId;
+        private List<String> items;
+        private long amount;
 
         private String shippingAddress;
         private String billingAddress;
@@ -168,28 +489,44 @@ class Order {
         private boolean giftWrap;
         private String paymentMethod;
         private String currency;
+        private Cart cart;
 
-        OrderBuilder(String orderId, String userId, List<String> items, int amount) {
-            if (orderId == null || orderId.isEmpty()){
-                throw new IllegalArgumentException("Invalid OrderId");
-            }
-            
-            if (userId == null || userId.isEmpty()){
-                throw new IllegalArgumentException("Invalid UserId");
-            }
-            
-            if (items == null || items.isEmpty()){
-                throw new IllegalArgumentException("No items added");
-            }
-            
-            if (amount <= 0){
-                throw new IllegalArgumentException("Invalid amount");
-            }
+        private int errors;
 
+        OrderBuilder() {
+        }
+
+        // amount is in minor units of the order's currency (paise for INR)
+        OrderBuilder(String orderId, String userId, List<String> items, long amount) {
             this.orderId = orderId;
             this.userId = userId;
             this.items = items;
             this.amount = amount;
+
+            int mandatory = validate() & OrderError.MANDATORY;
+            if (mandatory != 0) {
+                throw new IllegalArgumentException(OrderError.first(mandatory).getMessage());
+            }
+        }
+
+        public OrderBuilder setOrderId(String val) {
+            this.orderId = val;
+            return this;
+        }
+
+        public OrderBuilder setUserId(String val) {
+            this.userId = val;
+            return this;
+        }
+
+        public OrderBuilder setItems(List<String> val) {
+            this.items = val;
+            return this;
+        }
+
+        public OrderBuilder setAmount(long val) {
+            this.amount = val;
+            return this;
         }
 
         public OrderBuilder setShippingAddress(String val) {
@@ -222,59 +559,199 @@ class Order {
             return this;
         }
 
+        // Keeps a frozen copy; an amount not set yet is taken from the cart subtotal
+        public OrderBuilder setCart(Cart val) {
+            this.cart = val == null ? null : val.freeze();
+            if (cart != null && amount == 0) {
+                this.amount = cart.subtotal();
+            }
+            return this;
+        }
+
+        // OrderError bits for every failed check; 0 means valid
+        public int validate() {
+            int mask = 0;
+            if (orderId == null || orderId.isEmpty()) mask |= OrderError.INVALID_ORDER_ID.bit();
+            if (userId == null || userId.isEmpty()) mask |= OrderError.INVALID_USER_ID.bit();
+            if (items == null || items.isEmpty()) {
+                mask |= OrderError.NO_ITEMS.bit();
+            } else {
+                for (int i = 0; i < items.size(); i++) {
+                    if (items.get(i) == null) {
+                        mask |= OrderError.NULL_ITEM.bit();
+                        break;
+                    }
+                }
+            }
+            if (amount <= 0) mask |= OrderError.INVALID_AMOUNT.bit();
+            if (shippingAddress == null || billingAddress == null) mask |= OrderError.ADDRESS_MISSING.bit();
+            if (paymentMethod == null || currency == null) mask |= OrderError.PAYMENT_MISSING.bit();
+            if (cart != null && (cart.subtotal() != amount || !cart.getCurrency().equals(currency))) {
+                mask |= OrderError.CART_MISMATCH.bit();
+            }
+            return mask;
+        }
+
         public Order build() {
-            if (shippingAddress == null || billingAddress == null)
-                throw new IllegalArgumentException("Address missing");
-            if (paymentMethod == null || currency == null)
-                throw new IllegalArgumentException("Payment/Currency missing");
+            int mask = validate();
+            if (mask != 0)
+                throw new IllegalArgumentException(OrderError.first(mask).getMessage());
 
             return new Order(this);
         }
+
+        // Fast path: null instead of an exception, reasons in getErrors()
+        public Order tryBuild() {
+            errors = validate();
+            return errors == 0 ? new Order(this) : null;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+    }
+}
+
+// Order validation failures as bits, so validate() can report all of them without throwing
+enum OrderError {
+    INVALID_ORDER_ID("Invalid OrderId"),
+    INVALID_USER_ID("Invalid UserId"),
+    NO_ITEMS("No items added"),
+    NULL_ITEM("Null item in list"),
+    INVALID_AMOUNT("Invalid amount"),
+    ADDRESS_MISSING("Address missing"),
+    PAYMENT_MISSING("Payment/Currency missing"),
+    CART_MISMATCH("Amount or currency doesn't match the cart");
+
+    // Checked as soon as the mandatory fields are given
+    static final int MANDATORY = INVALID_ORDER_ID.bit() | INVALID_USER_ID.bit() | NO_ITEMS.bit()
+            | NULL_ITEM.bit() | INVALID_AMOUNT.bit();
+
+    private static final OrderError[] VALUES = values();
+
+    private final String message;
+
+    OrderError(String message) {
+        this.message = message;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public int bit() {
+        return 1 << ordinal();
+    }
+
+    static OrderError first(int mask) {
+        return VALUES[Integer.numberOfTrailingZeros(mask)];
+    }
+
+    public static String describe(int mask) {
+        StringJoiner joiner = new StringJoiner(", ");
+        for (OrderError error : VALUES) {
+            if ((mask & error.bit()) != 0) {
+                joiner.add(error.getMessage());
+            }
+        }
+        return joiner.toString();
     }
 }
 
 // ======================= STRATEGY (UNCHANGED LOGIC) =======================
+// Which discount was applied; one shared instance per rule
+final class DiscountRule {
+    static final DiscountRule NONE = new DiscountRule("NONE", "No discount added");
+    static final DiscountRule FLAT_100 = new DiscountRule("FLAT_100", "The discount is avail");
+    static final DiscountRule FLAT_NOT_ELIGIBLE =
+            new DiscountRule("FLAT_NOT_ELIGIBLE", "Add more items to avail the flat discount");
+
+    private final String name;
+    private final String description;
+
+    DiscountRule(String name, String description) {
+        this.name = name;
+        this.description = description;
+    }
+
+    public String getName() { return name; }
+    public String getDescription() { return description; }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
+
+// Outcome of a discount: final total (minor units) and the rule that produced it.
+// Mutable on purpose so hot paths can reuse one instance instead of allocating.
+final class DiscountResult {
+    private long originalAmount;
+    private long total;
+    private DiscountRule rule = DiscountRule.NONE;
+    private String currency;
+
+    DiscountResult set(long originalAmount, long total, DiscountRule rule) {
+        this.originalAmount = originalAmount;
+        this.total = total;
+        this.rule = rule;
+        return this;
+    }
+
+    // Only used for display; strategies work on bare minor units
+    DiscountResult in(String currency) {
+        this.currency = currency;
+        return this;
+    }
+
+    public long getOriginalAmount() { return originalAmount; }
+    public long getTotal() { return total; }
+    public long getSavings() { return originalAmount - total; }
+    public DiscountRule getRule() { return rule; }
+
+    public Money getTotalMoney() {
+        return Money.of(total, currency);
+    }
+
+    @Override
+    public String toString() {
+        return rule.getDescription() + "....your total is: " + Money.format(total, currency);
+    }
+}
+
+// Strategies are pure: they compute into result and return it, nothing is printed.
+// Amounts are minor units of the given currency; the currency decides how
+// rules written in major units (e.g. "100 off") scale.
 interface DiscountStrategy {
-    void DiscountProcess(double Amount);
+    DiscountResult DiscountProcess(long Amount, String currency, DiscountResult result);
 }
 
 class NoDiscount implements DiscountStrategy {
-    public void DiscountProcess(double Amount) {
-        System.out.println("No discount added...your total is: " + Amount);
+    public DiscountResult DiscountProcess(long Amount, String currency, DiscountResult result) {
+        return result.set(Amount, Amount, DiscountRule.NONE);
     }
 }
 
+// Tiers: 5% for [500, 1000), 6.5% for [1000, 1500), 7.5% for [1500, 2500), none otherwise
 class PercentDiscount implements DiscountStrategy {
-    public void DiscountProcess(double Amount) {
-        double res;
-        if (Amount >= 500 && Amount < 1000) {
-            double per = 5;
-            res = (Amount * per) / 100;
-            System.out.println("Discount of 5% is offered....your total is: " + (Amount - res));
-        } 
-        else if (Amount >= 1000 && Amount < 1500) {
-            double per = 6.5;
-            res = (Amount * per) / 100;
-            System.out.println("Discount of 6.5% is offered....your total is: " + (Amount - res));
-        } 
-        else if (Amount >= 1500 && Amount < 2500) {
-            double per = 7.5;
-            res = (Amount * per) / 100;
-            System.out.println("Discount of 7.5% is offered....your total is: " + (Amount - res));
-        } 
-        else {
-            System.out.println("No Discount included...your total is: " + Amount);
-        }
+    private static final CompiledPromotions TIERS = PromotionCompiler.compile(
+            Collections.singletonList("TIERED;PERCENT;500:5,1000:6.5,1500:7.5,2500:0"));
+
+    public DiscountResult DiscountProcess(long Amount, String currency, DiscountResult result) {
+        return TIERS.DiscountProcess(Amount, currency, result);
     }
 }
 
 class FlatDiscount implements DiscountStrategy {
-    public void DiscountProcess(double Amount) {
-        if (Amount - 100 > 0) {
-            System.out.println("The discount is avail and new price is: " + (Amount - 100));
+    private static final long OFF_MAJOR = 100;
+
+    public DiscountResult DiscountProcess(long Amount, String currency, DiscountResult result) {
+        long off = OFF_MAJOR * Money.minorPerMajor(currency);
+        if (Amount - off > 0) {
+            return result.set(Amount, Amount - off, DiscountRule.FLAT_100);
         } 
         else {
-            System.out.println("Add item worth " + Math.abs(Amount - 100 + 1) + " to the cart");
+            return result.set(Amount, Amount, DiscountRule.FLAT_NOT_ELIGIBLE);
         }
     }
 }
@@ -286,95 +763,2911 @@ class Discount {
         this.discountStrategy = discountStrategy;
     }
 
-    public void discount(double Amount) {
-        discountStrategy.DiscountProcess(Amount);
+    public DiscountResult discount(Money amount) {
+        return discountStrategy.DiscountProcess(amount.getMinor(), amount.getCurrency(), new DiscountResult())
+                .in(amount.getCurrency());
     }
-}
 
-// ======================= COMMAND PATTERN =======================
-interface Command {
-    void execute();
-    void undo();
+    // Hot path: minor units, caller supplies (and may reuse) the result
+    public DiscountResult discount(long Amount, String currency, DiscountResult result) {
+        return discountStrategy.DiscountProcess(Amount, currency, result);
+    }
+
+    // Prices a whole page of carts in one currency: totals[i] = discounted amounts[i]
+    public void discountAll(long[] amounts, String currency, long[] totals) {
+        if (totals.length < amounts.length) {
+            throw new IllegalArgumentException("Totals array too small");
+        }
+        DiscountResult scratch = new DiscountResult();
+        for (int i = 0; i < amounts.length; i++) {
+            totals[i] = discountStrategy.DiscountProcess(amounts[i], currency, scratch).getTotal();
+        }
+    }
 }
 
-// Receiver = Order
-class ProcessPaymentCommand implements Command {
-    private Order order;
+// ======================= PROMOTION RULE ENGINE =======================
+// Config, one promotion per line: TYPE;name;params
+//   TIERED;name;min:percent,min:percent,...   percent of the highest tier with min <= amount
+//                                             (a 0 tier ends the discount)
+//   FLAT;name;min:off                         off when amount >= min and amount - off > 0
+//   PERCENT;name;min:percent                  percent when amount >= min
+// Amounts are written in major units and compiled to hundredths of a major
+// unit, percentages to basis points. Each currency gets its own copy scaled
+// to its minor unit on first use, so evaluation is integer-only.
+final class PromotionCompiler {
 
-    ProcessPaymentCommand(Order order) {
-        this.order = order;
+    private PromotionCompiler() {
     }
 
-    public void execute() {
-        System.out.println("Payment processed for Order ID: " + order.getOrderId());
-    }
+    public static CompiledPromotions compile(List<String> config) {
+        List<long[]> thresholds = new ArrayList<>();
+        List<long[]> values = new ArrayList<>();
+        List<DiscountRule[]> rules = new ArrayList<>();
+        List<Byte> kinds = new ArrayList<>();
 
-    public void undo() {
-        System.out.println(
-            "Order cancelled for Order ID: " + order.getOrderId() +
-            ". Refund initiated via " + order.getPaymentMethod()
-        );
+        for (int line = 0; line < config.size(); line++) {
+            String text = config.get(line).trim();
+            if (text.isEmpty() || text.startsWith("#")) {
+                continue;
+            }
+            String[] parts = text.split(";");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Line " + (line + 1) + ": expected TYPE;name;params");
+            }
+            String name = parts[1].trim();
+            String[] pairs = parts[2].split(",");
+            long[] mins = new long[pairs.length];
+            long[] amounts = new long[pairs.length];
+            for (int i = 0; i < pairs.length; i++) {
+                String[] pair = pairs[i].split(":");
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Line " + (line + 1) + ": expected min:value, got " + pairs[i]);
+                }
+                try {
+                    // Both scale by 100: major -> minor units, percent -> basis points
+                    mins[i] = new BigDecimal(pair[0].trim()).movePointRight(2).longValueExact();
+                    amounts[i] = new BigDecimal(pair[1].trim()).movePointRight(2).longValueExact();
+                } catch (NumberFormatException | ArithmeticException e) {
+                    throw new IllegalArgumentException("Line " + (line + 1) + ": invalid number in " + pairs[i]);
+                }
+                if (i > 0 && mins[i] <= mins[i - 1]) {
+                    throw new IllegalArgumentException("Line " + (line + 1) + ": tiers must be increasing");
+                }
+            }
+
+            byte kind;
+            switch (parts[0].trim()) {
+                case "TIERED":
+                    kind = CompiledPromotions.TIERED;
+                    break;
+                case "FLAT":
+                    kind = CompiledPromotions.FLAT;
+                    break;
+                case "PERCENT":
+                    kind = CompiledPromotions.PERCENT;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Line " + (line + 1) + ": unknown promotion type " + parts[0]);
+            }
+            if (kind != CompiledPromotions.TIERED && pairs.length != 1) {
+                throw new IllegalArgumentException("Line " + (line + 1) + ": " + parts[0] + " takes one min:value");
+            }
+
+            DiscountRule[] tierRules = new DiscountRule[pairs.length];
+            for (int i = 0; i < pairs.length; i++) {
+                String value = BigDecimal.valueOf(amounts[i], 2).stripTrailingZeros().toPlainString();
+                tierRules[i] = kind == CompiledPromotions.FLAT
+                        ? new DiscountRule(name, "Flat " + value + " off")
+                        : new DiscountRule(name + "@" + i, "Discount of " + value + "% is offered");
+            }
+
+            kinds.add(kind);
+            thresholds.add(mins);
+            values.add(amounts);
+            rules.add(tierRules);
+        }
+
+        byte[] kindArray = new byte[kinds.size()];
+        for (int i = 0; i < kindArray.length; i++) {
+            kindArray[i] = kinds.get(i);
+        }
+        return new CompiledPromotions(kindArray,
+                thresholds.toArray(new long[0][]),
+                values.toArray(new long[0][]),
+                rules.toArray(new DiscountRule[0][]));
     }
 }
 
-class ApplyDiscountCommand implements Command {
-    private Order order;
-    private Discount discount;
+// All active promotions as flat arrays; a cart gets the single promotion
+// that saves the most. Evaluation allocates nothing.
+final class CompiledPromotions implements DiscountStrategy {
 
-    ApplyDiscountCommand(Order order, Discount discount) {
-        this.order = order;
-        this.discount = discount;
+    static final byte TIERED = 0;
+    static final byte FLAT = 1;
+    static final byte PERCENT = 2;
+
+    private final byte[] kinds;
+    // Thresholds and flat amounts in hundredths of a major unit, percentages in basis points
+    private final long[][] thresholds;
+    private final long[][] values;
+    private final DiscountRule[][] rules;
+    // Per currency: { thresholds, values } in that currency's minor units
+    private final Map<String, long[][][]> scaled = new ConcurrentHashMap<>();
+
+    CompiledPromotions(byte[] kinds, long[][] thresholds, long[][] values, DiscountRule[][] rules) {
+        this.kinds = kinds;
+        this.thresholds = thresholds;
+        this.values = values;
+        this.rules = rules;
     }
 
-    public void execute() {
-        discount.discount(order.getAmount());
+    private long[][][] tablesFor(String currency) {
+        long[][][] tables = scaled.get(currency);
+        if (tables == null) {
+            tables = scaled.computeIfAbsent(currency, this::scale);
+        }
+        return tables;
     }
 
-    public void undo() {
-        System.out.println("Discount reverted for Order ID: " + order.getOrderId());
+    private long[][][] scale(String currency) {
+        long minor = Money.minorPerMajor(currency);
+        long[][] mins = new long[kinds.length][];
+        long[][] amounts = new long[kinds.length][];
+        for (int p = 0; p < kinds.length; p++) {
+            mins[p] = new long[thresholds[p].length];
+            amounts[p] = values[p].clone();
+            for (int i = 0; i < mins[p].length; i++) {
+                // Round minimums up so "amount >= min" never admits less than configured
+                mins[p][i] = -Math.floorDiv(-Math.multiplyExact(thresholds[p][i], minor), 100);
+                if (kinds[p] == FLAT) {
+                    amounts[p][i] = Math.multiplyExact(values[p][i], minor) / 100;
+                }
+            }
+        }
+        return new long[][][] {mins, amounts};
     }
-}
 
-// Invoker
-class CheckoutProcessor {
-    private Stack<Command> history = new Stack<>();
+    public int size() {
+        return kinds.length;
+    }
 
-    public void executeCommand(Command command) {
-        command.execute();
-        history.push(command);
+    public DiscountResult DiscountProcess(long Amount, String currency, DiscountResult result) {
+        long[][][] tables = tablesFor(currency);
+        long[][] thresholds = tables[0];
+        long[][] values = tables[1];
+        long bestSavings = 0;
+        DiscountRule bestRule = DiscountRule.NONE;
+
+        for (int p = 0; p < kinds.length; p++) {
+            int tier = tierFor(thresholds[p], Amount);
+            if (tier < 0) {
+                continue;
+            }
+            long savings;
+            if (kinds[p] == FLAT) {
+                savings = Amount - values[p][tier] > 0 ? values[p][tier] : 0;
+            } else {
+                savings = Money.basisPoints(Amount, values[p][tier]);
+            }
+            if (savings > bestSavings) {
+                bestSavings = savings;
+                bestRule = rules[p][tier];
+            }
+        }
+        return result.set(Amount, Amount - bestSavings, bestRule);
     }
 
-    public void rollback() {
-        while (!history.isEmpty()) {
-            history.pop().undo();
+    // Index of the highest threshold <= amount, or -1 (binary search)
+    private static int tierFor(long[] mins, long amount) {
+        int low = 0;
+        int high = mins.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mins[mid] <= amount) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
         }
+        return found;
     }
 }
 
-// ======================= MAIN =======================
-public class Main {
-    public static void main(String[] args) {
+// ======================= CART PRICING PIPELINE =======================
+// One cart line; prices are in minor units (paise / cents) so sums are exact.
+// All pricing arithmetic goes through the Money helpers: sums and products
+// throw on overflow, and basis-point amounts round half away from zero.
+final class LineItem {
+    private final String sku;
+    private final int quantity;
+    private final long unitPrice;
 
-        Order order = new Order.OrderBuilder(
-                "ORD101",
-                "USER42",
-                List.of("Laptop", "Mouse"),
-                1200
-        )
-        .setShippingAddress("Pune")
-        .setBillingAddress("Pune")
-        .setPaymentMethod("UPI")
-        .setCurrency("INR")
-        .build();
+    LineItem(String sku, int quantity, long unitPrice) {
+        this.sku = sku;
+        this.quantity = quantity;
+        this.unitPrice = unitPrice;
+    }
 
-        Discount discount = new Discount(new PercentDiscount());
+    public String getSku() { return sku; }
+    public int getQuantity() { return quantity; }
+    public long getUnitPrice() { return unitPrice; }
+    public long getLineTotal() { return Money.multiply(unitPrice, quantity); }
 
-        CheckoutProcessor checkout = new CheckoutProcessor();
+    @Override
+    public String toString() {
+        return quantity + " x " + sku + " @ " + unitPrice;
+    }
+}
 
-        checkout.executeCommand(new ApplyDiscountCommand(order, discount));
+// Lines are stored column by column so pricing stages loop over primitive
+// arrays instead of chasing one object per line
+class Cart {
+    private String[] skus;
+    private int[] quantities;
+    private long[] unitPrices;
+    private int size;
+    private final String currency;
+    private boolean frozen;
+
+    Cart(String currency) {
+        this(currency, 16);
+    }
+
+    // Prices are minor units of currency
+    Cart(String currency, int capacity) {
+        Money.fractionDigits(Objects.requireNonNull(currency, "currency")); // rejects unknown codes
+        this.currency = currency;
+        skus = new String[capacity];
+        quantities = new int[capacity];
+        unitPrices = new long[capacity];
+    }
+
+    public Cart add(String sku, int quantity, long unitPrice) {
+        if (frozen) {
+            throw new IllegalStateException("Cart is frozen");
+        }
+        if (sku == null || sku.isEmpty()) {
+            throw new IllegalArgumentException("Invalid SKU");
+        }
+        if (quantity <= 0 || unitPrice < 0) {
+            throw new IllegalArgumentException("Invalid quantity or price for " + sku);
+        }
+        if (size == skus.length) {
+            int capacity = Math.max(16, size * 2);
+            skus = Arrays.copyOf(skus, capacity);
+            quantities = Arrays.copyOf(quantities, capacity);
+            unitPrices = Arrays.copyOf(unitPrices, capacity);
+        }
+        skus[size] = sku;
+        quantities[size] = quantity;
+        unitPrices[size] = unitPrice;
+        size++;
+        return this;
+    }
+
+    public Cart add(LineItem item) {
+        return add(item.getSku(), item.getQuantity(), item.getUnitPrice());
+    }
+
+    public int size() { return size; }
+    public String getCurrency() { return currency; }
+    public boolean isFrozen() { return frozen; }
+
+    // Sum of quantity x unit price before any discount
+    public long subtotal() {
+        long sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum = Money.add(sum, lineTotal(i));
+        }
+        return sum;
+    }
+
+    // Quantity x unit price of line i; the pricing pipeline uses the same product
+    long lineTotal(int i) {
+        return Money.multiply(unitPrices[i], quantities[i]);
+    }
+
+    // Read-only copy, trimmed to size; a frozen cart is its own copy
+    public Cart freeze() {
+        if (frozen) {
+            return this;
+        }
+        Cart copy = new Cart(currency, 0);
+        copy.skus = Arrays.copyOf(skus, size);
+        copy.quantities = Arrays.copyOf(quantities, size);
+        copy.unitPrices = Arrays.copyOf(unitPrices, size);
+        copy.size = size;
+        copy.frozen = true;
+        return copy;
+    }
+
+    public LineItem get(int i) {
+        Objects.checkIndex(i, size);
+        return new LineItem(skus[i], quantities[i], unitPrices[i]);
+    }
+
+    // Column access for the pricing stages; valid up to size()
+    String[] skus() { return skus; }
+}
+
+// Working totals while a cart is priced; each stage reads and updates them
+final class PricingContext {
+    final Cart cart;
+    final long[] lineTotals;
+    long itemDiscount;
+    long subtotal;
+    long cartDiscount;
+    long tax;
+    long shipping;
+
+    PricingContext(Cart cart) {
+        this.cart = cart;
+        this.lineTotals = new long[cart.size()];
+    }
+
+    long taxable() {
+        return Money.subtract(subtotal, cartDiscount);
+    }
+}
+
+interface PricingStage {
+    void apply(PricingContext context);
+}
+
+// Percentage off selected SKUs, in basis points (100 = 1%)
+class ItemDiscountStage implements PricingStage {
+    private final Map<String, Integer> basisPointsBySku;
+
+    ItemDiscountStage(Map<String, Integer> basisPointsBySku) {
+        this.basisPointsBySku = new HashMap<>(basisPointsBySku);
+    }
+
+    public void apply(PricingContext context) {
+        String[] skus = context.cart.skus();
+        long[] lineTotals = context.lineTotals;
+        long off = PricingPipeline.sumRanges(lineTotals.length, (from, to) -> {
+            long sum = 0;
+            for (int i = from; i < to; i++) {
+                Integer bp = basisPointsBySku.get(skus[i]);
+                if (bp != null) {
+                    long lineOff = Money.basisPoints(lineTotals[i], bp);
+                    lineTotals[i] = Money.subtract(lineTotals[i], lineOff);
+                    sum = Money.add(sum, lineOff);
+                }
+            }
+            return sum;
+        });
+        context.itemDiscount = Money.add(context.itemDiscount, off);
+        context.subtotal = Money.subtract(context.subtotal, off);
+    }
+}
+
+// Best cart-level promotion on the subtotal, using the compiled promotion tables
+class CartDiscountStage implements PricingStage {
+    private final DiscountStrategy promotions;
+
+    CartDiscountStage(DiscountStrategy promotions) {
+        this.promotions = promotions;
+    }
+
+    public void apply(PricingContext context) {
+        context.cartDiscount = Money.add(context.cartDiscount, promotions.DiscountProcess(context.subtotal,
+                context.cart.getCurrency(), new DiscountResult()).getSavings());
+    }
+}
+
+// Tax in basis points on the discounted subtotal, rounded half away from zero
+class TaxStage implements PricingStage {
+    private final int basisPoints;
+
+    TaxStage(int basisPoints) {
+        this.basisPoints = basisPoints;
+    }
+
+    public void apply(PricingContext context) {
+        context.tax = Money.basisPoints(context.taxable(), basisPoints);
+    }
+}
+
+// Flat shipping fee, waived once the discounted subtotal reaches freeAbove
+class ShippingStage implements PricingStage {
+    private final long fee;
+    private final long freeAbove;
+
+    ShippingStage(long fee, long freeAbove) {
+        this.fee = fee;
+        this.freeAbove = freeAbove;
+    }
+
+    public void apply(PricingContext context) {
+        context.shipping = context.taxable() >= freeAbove ? 0 : fee;
+    }
+}
+
+// Final price breakdown, all in minor units
+final class PricedCart {
+    private final int lines;
+    private final long subtotal;
+    private final long itemDiscount;
+    private final long cartDiscount;
+    private final long tax;
+    private final long shipping;
+
+    PricedCart(PricingContext context) {
+        this.lines = context.lineTotals.length;
+        this.subtotal = context.subtotal;
+        this.itemDiscount = context.itemDiscount;
+        this.cartDiscount = context.cartDiscount;
+        this.tax = context.tax;
+        this.shipping = context.shipping;
+    }
+
+    public long getSubtotal() { return subtotal; }
+    public long getItemDiscount() { return itemDiscount; }
+    public long getCartDiscount() { return cartDiscount; }
+    public long getTax() { return tax; }
+    public long getShipping() { return shipping; }
+    public long getTotal() { return Money.add(Money.add(Money.subtract(subtotal, cartDiscount), tax), shipping); }
+
+    @Override
+    public String toString() {
+        return lines + " lines: subtotal " + subtotal + " (items -" + itemDiscount + "), cart -" + cartDiscount +
+                ", tax " + tax + ", shipping " + shipping + " => total " + getTotal();
+    }
+}
+
+// Runs the stages in order. Line loops split across the common pool only for
+// very large carts; below that a single core finishes before fork/join pays off.
+class PricingPipeline {
+    static final int PARALLEL_THRESHOLD = 100_000;
+    private static final int CHUNK = 16_384;
+
+    interface RangeSum {
+        long sum(int from, int to);
+    }
+
+    private final List<PricingStage> stages;
+
+    PricingPipeline(PricingStage... stages) {
+        this.stages = List.of(stages);
+    }
+
+    public PricedCart price(Cart cart) {
+        PricingContext context = new PricingContext(cart);
+        long[] lineTotals = context.lineTotals;
+        context.subtotal = sumRanges(lineTotals.length, (from, to) -> {
+            long sum = 0;
+            for (int i = from; i < to; i++) {
+                lineTotals[i] = cart.lineTotal(i);
+                sum = Money.add(sum, lineTotals[i]);
+            }
+            return sum;
+        });
+        for (PricingStage stage : stages) {
+            stage.apply(context);
+        }
+        return new PricedCart(context);
+    }
+
+    static long sumRanges(int size, RangeSum task) {
+        if (size < PARALLEL_THRESHOLD) {
+            return task.sum(0, size);
+        }
+        int chunks = (size + CHUNK - 1) / CHUNK;
+        return IntStream.range(0, chunks).parallel()
+                .mapToLong(c -> task.sum(c * CHUNK, Math.min(size, (c + 1) * CHUNK)))
+                .reduce(0, Money::add);
+    }
+}
+
+// ======================= COMMAND PATTERN =======================
+interface Command {
+    void execute();
+    void undo();
+}
+
+// Receiver = Order
+class ProcessPaymentCommand implements Command {
+    private Order order;
+    private final RedeemCouponCommand coupon;
+    private Money charged;
+
+    ProcessPaymentCommand(Order order) {
+        this(order, null);
+    }
+
+    // Charges the order amount less the coupon redeemed by an earlier step
+    ProcessPaymentCommand(Order order, RedeemCouponCommand coupon) {
+        this.order = order;
+        this.coupon = coupon;
+    }
+
+    public void execute() {
+        charged = order.getAmount();
+        if (coupon != null && coupon.getDiscount() != null) {
+            Money off = coupon.getDiscount();
+            charged = off.getMinor() >= charged.getMinor() ? Money.of(0, charged.getCurrency()) : charged.minus(off);
+            System.out.println("Payment of " + charged + " processed for Order ID: " + order.getOrderId());
+            return;
+        }
+        System.out.println("Payment processed for Order ID: " + order.getOrderId());
+    }
+
+    // Amount actually charged; null until executed
+    public Money getCharged() {
+        return charged;
+    }
+
+    public void undo() {
+        System.out.println(
+            "Order cancelled for Order ID: " + order.getOrderId() +
+            ". Refund initiated via " + order.getPaymentMethod()
+        );
+    }
+}
+
+class ApplyDiscountCommand implements Command {
+    private Order order;
+    private Discount discount;
+    private DiscountResult result;
+
+    ApplyDiscountCommand(Order order, Discount discount) {
+        this.order = order;
+        this.discount = discount;
+    }
+
+    public void execute() {
+        result = discount.discount(order.getAmount());
+        System.out.println(result);
+    }
+
+    // Null until executed
+    public DiscountResult getResult() {
+        return result;
+    }
+
+    public void undo() {
+        System.out.println("Discount reverted for Order ID: " + order.getOrderId());
+    }
+}
+
+// ======================= INVENTORY RESERVATION =======================
+// Stock of one SKU split across several atomic counters. Threads start on
+// different stripes, so reservations on a hot SKU rarely CAS the same value.
+// Stripes sit 8 longs apart to keep them on separate cache lines.
+final class StripedStock {
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells;
+    private final int stripes;
+
+    StripedStock(int stripes) {
+        this.stripes = stripes;
+        this.cells = new AtomicLongArray(stripes * PAD);
+    }
+
+    void add(long quantity) {
+        // Spread new stock evenly so every stripe can serve requests
+        long share = quantity / stripes;
+        long rest = quantity % stripes;
+        for (int i = 0; i < stripes; i++) {
+            cells.addAndGet(i * PAD, share + (i < rest ? 1 : 0));
+        }
+    }
+
+    // Takes quantity from one or more stripes; all or nothing.
+    // The lock-free path only takes from a single stripe that covers the whole
+    // quantity. Takes that span stripes run under the lock, so no other take
+    // holds stock mid-way and a short sweep means the stock is really gone.
+    boolean tryTake(int quantity) {
+        int start = ThreadLocalRandom.current().nextInt(stripes);
+        for (int k = 0; k < stripes; k++) {
+            int i = ((start + k) % stripes) * PAD;
+            long available;
+            while ((available = cells.get(i)) >= quantity) {
+                if (cells.compareAndSet(i, available, available - quantity)) {
+                    return true;
+                }
+            }
+        }
+        synchronized (this) {
+            return sweep(quantity);
+        }
+    }
+
+    // One pass over the stripes; gives back what it took if it fell short
+    private boolean sweep(int quantity) {
+        long remaining = quantity;
+        long[] taken = new long[stripes];
+
+        for (int k = 0; k < stripes && remaining > 0; k++) {
+            int i = k * PAD;
+            while (true) {
+                long available = cells.get(i);
+                if (available <= 0) {
+                    break;
+                }
+                long take = Math.min(available, remaining);
+                if (cells.compareAndSet(i, available, available - take)) {
+                    remaining -= take;
+                    taken[k] += take;
+                    break;
+                }
+            }
+        }
+
+        if (remaining > 0) {
+            for (int k = 0; k < stripes; k++) {
+                if (taken[k] > 0) {
+                    cells.addAndGet(k * PAD, taken[k]);
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    void put(int quantity) {
+        cells.addAndGet(ThreadLocalRandom.current().nextInt(stripes) * PAD, quantity);
+    }
+
+    long available() {
+        long sum = 0;
+        for (int i = 0; i < stripes; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+}
+
+// A hold on stock for one checkout
+final class Reservation {
+    private final long id;
+    private final Map<String, Integer> quantities;
+    private final long expiresAtNanos;
+
+    Reservation(long id, Map<String, Integer> quantities, long expiresAtNanos) {
+        this.id = id;
+        this.quantities = quantities;
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    public long getId() { return id; }
+    public Map<String, Integer> getQuantities() { return quantities; }
+    public long getExpiresAtNanos() { return expiresAtNanos; }
+}
+
+// Reserves stock per SKU without locks. Every reservation ends exactly once:
+// confirmed (stock sold), released (undo) or expired (abandoned checkout),
+// whichever removes it from the table first.
+// Expiry uses a hashed timing wheel: insert is O(1) and each tick only looks
+// at one slot. A reservation goes in the slot of the first tick due at or
+// after its deadline, and is checked against the clock, so it never expires
+// early; entries more than one rotation away wait for a later pass.
+// Ticks are numbered by elapsed time, so a late ticker run sweeps every slot
+// it missed; a reservation whose slot was swept while it was added moves on.
+class InventoryService implements AutoCloseable {
+
+    private static final int WHEEL_SLOTS = 512;
+
+    private final Map<String, StripedStock> stock = new ConcurrentHashMap<>();
+    private final Map<Long, Reservation> reservations = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final int stripes;
+    private final long ttlMillis;
+
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final List<Queue<Reservation>> wheel = new ArrayList<>(WHEEL_SLOTS);
+    private volatile long currentTick;
+    private final ScheduledExecutorService ticker;
+
+    InventoryService(long ttlMillis, long tickMillis) {
+        if (ttlMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("TTL and tick must be positive");
+        }
+        this.ttlMillis = ttlMillis;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.stripes = Math.max(1, Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel.add(new ConcurrentLinkedQueue<>());
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "reservation-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void addStock(String sku, long quantity) {
+        stock.computeIfAbsent(sku, k -> new StripedStock(stripes)).add(quantity);
+    }
+
+    public long available(String sku) {
+        StripedStock s = stock.get(sku);
+        return s == null ? 0 : s.available();
+    }
+
+    // Reserves one unit per listed item; all or nothing
+    public long reserve(List<String> items) {
+        Map<String, Integer> quantities = new HashMap<>();
+        for (String sku : items) {
+            quantities.merge(sku, 1, Integer::sum);
+        }
+
+        List<Map.Entry<String, Integer>> taken = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : quantities.entrySet()) {
+            StripedStock s = stock.get(entry.getKey());
+            if (s == null || !s.tryTake(entry.getValue())) {
+                for (Map.Entry<String, Integer> undo : taken) {
+                    stock.get(undo.getKey()).put(undo.getValue());
+                }
+                throw new IllegalStateException("Out of stock: " + entry.getKey());
+            }
+            taken.add(entry);
+        }
+
+        long id = ids.incrementAndGet();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        Reservation reservation = new Reservation(id, quantities, deadline);
+        reservations.put(id, reservation);
+        long dueTick = Math.max(currentTick + 1, (deadline - startNanos + tickNanos - 1) / tickNanos);
+        wheel.get((int) (dueTick % WHEEL_SLOTS)).add(reservation);
+        // A copy left in a passed slot is dropped once the reservation ends
+        long swept;
+        while ((swept = currentTick) >= dueTick) {
+            dueTick = swept + 1;
+            wheel.get((int) (dueTick % WHEEL_SLOTS)).add(reservation);
+        }
+        return id;
+    }
+
+    // Returns the stock; false if the reservation already ended
+    public boolean release(long reservationId) {
+        Reservation reservation = reservations.remove(reservationId);
+        if (reservation == null) {
+            return false;
+        }
+        for (Map.Entry<String, Integer> entry : reservation.getQuantities().entrySet()) {
+            stock.get(entry.getKey()).put(entry.getValue());
+        }
+        return true;
+    }
+
+    // Stock is sold: the reservation ends without returning anything
+    public boolean confirm(long reservationId) {
+        return reservations.remove(reservationId) != null;
+    }
+
+    public int activeReservations() {
+        return reservations.size();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        long due = (now - startNanos) / tickNanos;
+        // One rotation covers every slot, so older missed ticks need no sweep of their own
+        for (long tick = Math.max(currentTick + 1, due - WHEEL_SLOTS + 1); tick <= due; tick++) {
+            // Published before the sweep so reserve() sees the slot as passed
+            currentTick = tick;
+            sweep(wheel.get((int) (tick % WHEEL_SLOTS)), now);
+        }
+    }
+
+    private void sweep(Queue<Reservation> slot, long now) {
+        Iterator<Reservation> it = slot.iterator();
+        while (it.hasNext()) {
+            Reservation reservation = it.next();
+            if (!reservations.containsKey(reservation.getId())) {
+                it.remove();
+            } else if (reservation.getExpiresAtNanos() - now <= 0) {
+                it.remove();
+                if (release(reservation.getId())) {
+                    expired.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+}
+
+// Checkout step: reserve the order's items; undo releases the reservation
+class ReserveInventoryCommand implements Command {
+    private final Order order;
+    private final InventoryService inventory;
+    private long reservationId = -1;
+
+    ReserveInventoryCommand(Order order, InventoryService inventory) {
+        this.order = order;
+        this.inventory = inventory;
+    }
+
+    public void execute() {
+        reservationId = inventory.reserve(order.getItems());
+        System.out.println("Stock reserved for Order ID: " + order.getOrderId());
+    }
+
+    public void undo() {
+        if (reservationId >= 0 && inventory.release(reservationId)) {
+            System.out.println("Stock released for Order ID: " + order.getOrderId());
+        }
+        reservationId = -1;
+    }
+
+    // Call once the order is paid so the reservation can't expire
+    public boolean confirm() {
+        return reservationId >= 0 && inventory.confirm(reservationId);
+    }
+}
+
+// ======================= COUPONS =======================
+// 64-bit string hash for coupon codes and history indexes; never 0, so 0 can mark empty slots
+final class StringHash {
+    private StringHash() {
+    }
+
+    static long of(String value) {
+        // FNV-1a, then a murmur finalizer to spread the bits
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
+
+// Bloom filter over coupon code hashes. "No" is certain, so most invalid codes
+// (typos, guessing) are rejected without touching the coupon table.
+final class CouponBloomFilter {
+    private final AtomicLongArray words;
+    private final long bitMask;
+    private final int hashes;
+
+    // Sized for the expected count at the given false-positive rate
+    CouponBloomFilter(long expected, double falsePositiveRate) {
+        double bits = -expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long size = Long.highestOneBit(Math.max(64, (long) bits) - 1) << 1;
+        if (size / 64 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter too large for " + expected + " entries");
+        }
+        this.words = new AtomicLongArray((int) (size / 64));
+        this.bitMask = size - 1;
+        this.hashes = Math.max(1, (int) Math.round(size / (double) expected * Math.log(2)));
+    }
+
+    void add(long hash) {
+        // Two halves of one 64-bit hash give all k positions (double hashing)
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = (h1 + (long) i * h2) & bitMask;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = words.get(word);
+            while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+                current = words.get(word);
+            }
+        }
+    }
+
+    boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = (h1 + (long) i * h2) & bitMask;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// Active single-use coupons, kept off-heap so tens of millions of them don't
+// weigh on the GC. Open addressing with linear probing over 16-byte slots:
+//   [0..8)  64-bit hash of the code (0 = empty slot)
+//   [8..16) state word: ACTIVE bit | REDEEMED bit | value in minor units
+// Issue and redemption are lock-free CASes on these words through a VarHandle.
+// Codes are identified by their 64-bit hash: an unknown code matching a live
+// coupon's hash is possible but ~1e-12 per lookup at 20M coupons.
+class CouponService implements AutoCloseable {
+
+    static final long NOT_FOUND = -1;
+    static final long ALREADY_REDEEMED = -2;
+
+    private static final long ACTIVE = 1L << 62;
+    private static final long REDEEMED = 1L << 61;
+    private static final long VALUE_MASK = REDEEMED - 1;
+    private static final int SLOT_BYTES = 16;
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer table;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final int mask;
+    private final CouponBloomFilter filter;
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+    private final AtomicInteger issued = new AtomicInteger();
+
+    // Table in direct memory
+    CouponService(int expectedCoupons) {
+        this(expectedCoupons, null);
+    }
+
+    // Table in a memory-mapped file when mappedFile is given; the OS pages it.
+    // An existing file is reopened as is, so issued and redeemed coupons survive
+    // a restart; it must have been created with the same expectedCoupons.
+    CouponService(int expectedCoupons, Path mappedFile) {
+        long slots = Long.highestOneBit(Math.max(16, expectedCoupons * 2L) - 1) << 1;
+        if (slots * SLOT_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many coupons for one table: " + expectedCoupons);
+        }
+        int bytes = (int) (slots * SLOT_BYTES);
+        this.mask = (int) slots - 1;
+        this.filter = new CouponBloomFilter(expectedCoupons, 0.01);
+        if (mappedFile == null) {
+            this.channel = null;
+            this.mapped = null;
+            this.table = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        } else {
+            try {
+                this.channel = FileChannel.open(mappedFile, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long existing = channel.size();
+                if (existing != 0 && existing != bytes) {
+                    channel.close();
+                    throw new IllegalArgumentException("Coupon table " + mappedFile + " holds " + existing
+                            + " bytes, expected " + bytes + " for " + expectedCoupons + " coupons");
+                }
+                this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+                this.table = mapped.order(ByteOrder.nativeOrder());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot map coupon table " + mappedFile, e);
+            }
+            reload();
+        }
+    }
+
+    // Rebuilds the bloom filter and issued count from a table read back from disk
+    private void reload() {
+        for (int offset = 0; offset < table.capacity(); offset += SLOT_BYTES) {
+            long key = (long) LONGS.get(table, offset);
+            if (key != 0) {
+                filter.add(key);
+                issued.incrementAndGet();
+            }
+        }
+    }
+
+    // Makes a coupon redeemable for value (minor units); false if the code exists
+    public boolean issue(String code, long value) {
+        if (value < 0 || value > VALUE_MASK) {
+            throw new IllegalArgumentException("Invalid coupon value " + value);
+        }
+        long hash = StringHash.of(code);
+        for (int probe = 0; probe <= mask; probe++) {
+            int offset = slotOffset(hash, probe);
+            long key = (long) LONGS.getVolatile(table, offset);
+            if (key == 0 && LONGS.compareAndSet(table, offset, 0L, hash)) {
+                LONGS.setVolatile(table, offset + 8, ACTIVE | value);
+                filter.add(hash);
+                issued.incrementAndGet();
+                return true;
+            }
+            if (key == hash) {
+                return false;
+            }
+        }
+        throw new IllegalStateException("Coupon table full");
+    }
+
+    // Coupon value in minor units, or NOT_FOUND / ALREADY_REDEEMED.
+    // Exactly one concurrent caller wins a given coupon.
+    public long redeem(String code) {
+        int offset = find(code);
+        if (offset < 0) {
+            return NOT_FOUND;
+        }
+        while (true) {
+            long state = (long) LONGS.getVolatile(table, offset + 8);
+            if ((state & ACTIVE) == 0) {
+                return NOT_FOUND;
+            }
+            if ((state & REDEEMED) != 0) {
+                return ALREADY_REDEEMED;
+            }
+            if (LONGS.compareAndSet(table, offset + 8, state, state | REDEEMED)) {
+                return state & VALUE_MASK;
+            }
+        }
+    }
+
+    // Returns a redeemed coupon for reuse (checkout rolled back)
+    public boolean unredeem(String code) {
+        int offset = find(code);
+        if (offset < 0) {
+            return false;
+        }
+        while (true) {
+            long state = (long) LONGS.getVolatile(table, offset + 8);
+            if ((state & REDEEMED) == 0) {
+                return false;
+            }
+            if (LONGS.compareAndSet(table, offset + 8, state, state & ~REDEEMED)) {
+                return true;
+            }
+        }
+    }
+
+    // Slot offset of the code, or -1; the bloom filter answers most misses
+    private int find(String code) {
+        long hash = StringHash.of(code);
+        if (!filter.mightContain(hash)) {
+            filtered.increment();
+            return -1;
+        }
+        lookups.increment();
+        for (int probe = 0; probe <= mask; probe++) {
+            int offset = slotOffset(hash, probe);
+            long key = (long) LONGS.getVolatile(table, offset);
+            if (key == hash) {
+                return offset;
+            }
+            if (key == 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private int slotOffset(long hash, int probe) {
+        return (((int) (hash >>> 29) + probe) & mask) * SLOT_BYTES;
+    }
+
+    public int getIssuedCount() { return issued.get(); }
+    public long getFilteredCount() { return filtered.sum(); }
+    public long getLookupCount() { return lookups.sum(); }
+
+    // Writes a mapped table back to its file before closing it
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                mapped.force();
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
+
+// Checkout step: redeem the order's coupon; undo makes it usable again.
+// Orders without a coupon pass through.
+class RedeemCouponCommand implements Command {
+    private final Order order;
+    private final CouponService coupons;
+    private Money discount;
+
+    RedeemCouponCommand(Order order, CouponService coupons) {
+        this.order = order;
+        this.coupons = coupons;
+    }
+
+    public void execute() {
+        String code = order.getCouponCode();
+        if (code == null) {
+            return;
+        }
+        long value = coupons.redeem(code);
+        if (value == CouponService.NOT_FOUND) {
+            throw new IllegalStateException("Invalid coupon " + code + " for Order ID: " + order.getOrderId());
+        }
+        if (value == CouponService.ALREADY_REDEEMED) {
+            throw new IllegalStateException("Coupon " + code + " already used");
+        }
+        discount = Money.of(value, order.getCurrency());
+        System.out.println("Coupon " + code + " applied: " + discount + " off for Order ID: " + order.getOrderId());
+    }
+
+    public void undo() {
+        if (discount != null && coupons.unredeem(order.getCouponCode())) {
+            System.out.println("Coupon " + order.getCouponCode() + " restored for Order ID: " + order.getOrderId());
+        }
+        discount = null;
+    }
+
+    // Null unless a coupon was redeemed
+    public Money getDiscount() {
+        return discount;
+    }
+}
+
+// ======================= CHECKOUT METRICS =======================
+// Counts and latencies for one kind of checkout step. Recording only touches
+// LongAdders and an AtomicLongArray, so timing a step never takes a lock.
+// Latencies go into power-of-two buckets: bucket b holds [2^(b-1), 2^b) ns.
+final class CommandMetrics {
+    private final String name;
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder undos = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+    CommandMetrics(String name) {
+        this.name = name;
+    }
+
+    void started() {
+        inFlight.increment();
+    }
+
+    void finished(long nanos, boolean succeeded) {
+        inFlight.decrement();
+        executions.increment();
+        if (!succeeded) {
+            failures.increment();
+        }
+        totalNanos.add(nanos);
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, nanos)) & 63);
+    }
+
+    void undone() {
+        undos.increment();
+    }
+
+    // Counters are read one by one, so a snapshot taken under load can be off by in-flight steps
+    CommandStats snapshot() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new CommandStats(name, executions.sum(), failures.sum(), undos.sum(), inFlight.sum(),
+                totalNanos.sum(), counts);
+    }
+}
+
+// Point-in-time view of one step's metrics
+final class CommandStats {
+    private final String name;
+    private final long executions;
+    private final long failures;
+    private final long undos;
+    private final long inFlight;
+    private final long totalNanos;
+    private final long[] buckets;
+
+    CommandStats(String name, long executions, long failures, long undos, long inFlight,
+                 long totalNanos, long[] buckets) {
+        this.name = name;
+        this.executions = executions;
+        this.failures = failures;
+        this.undos = undos;
+        this.inFlight = inFlight;
+        this.totalNanos = totalNanos;
+        this.buckets = buckets;
+    }
+
+    public String getName() { return name; }
+    public long getExecutions() { return executions; }
+    public long getFailures() { return failures; }
+    public long getUndos() { return undos; }
+    public long getInFlight() { return inFlight; }
+
+    public long meanNanos() {
+        return executions == 0 ? 0 : totalNanos / executions;
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100)
+    public long percentileNanos(double percentile) {
+        long total = 0;
+        for (long count : buckets) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int b = 0; b < buckets.length; b++) {
+            seen += buckets[b];
+            if (seen >= Math.max(1, rank)) {
+                return b == 63 ? Long.MAX_VALUE : 1L << b;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-16s ok=%d failed=%d undone=%d inFlight=%d mean=%.1fus p50<%.1fus p99<%.1fus",
+                name, executions - failures, failures, undos, inFlight, meanNanos() / 1e3,
+                percentileNanos(50) / 1e3, percentileNanos(99) / 1e3);
+    }
+}
+
+// Registry of step metrics keyed by step name (command class by default),
+// with an optional reporter that prints a snapshot every period
+class CheckoutMetrics implements AutoCloseable {
+    private final Map<String, CommandMetrics> byCommand = new ConcurrentHashMap<>();
+    private ScheduledExecutorService reporter;
+
+    public Command wrap(Command command) {
+        String name = command.getClass().getSimpleName();
+        return wrap(command, name.isEmpty() ? command.getClass().getName() : name);
+    }
+
+    public Command wrap(Command command, String name) {
+        if (command instanceof TimedCommand) {
+            return command;
+        }
+        return new TimedCommand(command, byCommand.computeIfAbsent(name, CommandMetrics::new));
+    }
+
+    public List<CommandStats> snapshot() {
+        List<CommandStats> stats = new ArrayList<>();
+        for (CommandMetrics metrics : byCommand.values()) {
+            stats.add(metrics.snapshot());
+        }
+        stats.sort(Comparator.comparing(CommandStats::getName));
+        return stats;
+    }
+
+    // Sends one line per step every period, with the step's rate over that period
+    public synchronized void startReporting(long periodMillis, Consumer<String> sink) {
+        if (reporter != null) {
+            throw new IllegalStateException("Reporter already running");
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkout-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        Map<String, Long> previous = new HashMap<>();
+        reporter.scheduleAtFixedRate(() -> {
+            for (CommandStats stats : snapshot()) {
+                long last = previous.getOrDefault(stats.getName(), 0L);
+                previous.put(stats.getName(), stats.getExecutions());
+                sink.accept(String.format("%s rate=%.0f/s", stats, (stats.getExecutions() - last) * 1000.0 / periodMillis));
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+}
+
+// Decorator: times execute() and counts outcomes, then behaves exactly like the step it wraps
+class TimedCommand implements Command {
+    private final Command delegate;
+    private final CommandMetrics metrics;
+
+    TimedCommand(Command delegate, CommandMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    public void execute() {
+        metrics.started();
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            delegate.execute();
+            succeeded = true;
+        } finally {
+            metrics.finished(System.nanoTime() - start, succeeded);
+        }
+    }
+
+    public void undo() {
+        metrics.undone();
+        delegate.undo();
+    }
+}
+
+// Invoker
+class CheckoutProcessor {
+    private Stack<Command> history = new Stack<>();
+    private final CheckoutMetrics metrics;
+
+    CheckoutProcessor() {
+        this(null);
+    }
+
+    // Every executed step is timed into metrics
+    CheckoutProcessor(CheckoutMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void executeCommand(Command command) {
+        if (metrics != null) {
+            command = metrics.wrap(command);
+        }
+        command.execute();
+        history.push(command);
+    }
+
+    public void rollback() {
+        while (!history.isEmpty()) {
+            history.pop().undo();
+        }
+    }
+}
+
+// ======================= ORDER HISTORY STORE =======================
+// An order read back from history, with the time it was placed
+final class StoredOrder {
+    private final Order order;
+    private final long placedAtMillis;
+
+    StoredOrder(Order order, long placedAtMillis) {
+        this.order = order;
+        this.placedAtMillis = placedAtMillis;
+    }
+
+    public Order getOrder() { return order; }
+    public long getPlacedAtMillis() { return placedAtMillis; }
+
+    @Override
+    public String toString() {
+        return order.getOrderId() + " by " + order.getUserId() + " at " + placedAtMillis + ": " +
+                order.getAmount() + " " + order.getItems();
+    }
+}
+
+// Record layout: varint body length, then
+//   placedAt, orderId, userId, amount, currency, paymentMethod, shipping, billing,
+//   flags (1 = gift wrap, 2 = has coupon), [coupon], item count, items...
+// Numbers are unsigned LEB128 varints, strings a varint length plus UTF-8.
+// The cart is not stored; the order total is.
+final class OrderRecordCodec {
+    private static final int GIFT_WRAP = 1;
+    private static final int HAS_COUPON = 2;
+
+    private OrderRecordCodec() {
+    }
+
+    // Growable byte buffer, reused across records by one writer
+    static final class Output {
+        byte[] bytes = new byte[512];
+        int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        void put(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        void put(byte[] source, int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            }
+            System.arraycopy(source, 0, bytes, size, length);
+            size += length;
+        }
+
+        void putVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                put((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            put((int) value);
+        }
+
+        void putString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            putVarLong(utf8.length);
+            put(utf8, utf8.length);
+        }
+    }
+
+    // Appends the whole record, length prefix included, to out
+    static void encode(Order order, long placedAtMillis, Output body, Output out) {
+        body.clear();
+        body.putVarLong(placedAtMillis);
+        body.putString(order.getOrderId());
+        body.putString(order.getUserId());
+        body.putVarLong(order.getAmountMinor());
+        body.putString(order.getCurrency());
+        body.putString(order.getPaymentMethod());
+        body.putString(order.getShippingAddress());
+        body.putString(order.getBillingAddress());
+        String coupon = order.getCouponCode();
+        body.put((order.isGiftWrap() ? GIFT_WRAP : 0) | (coupon != null ? HAS_COUPON : 0));
+        if (coupon != null) {
+            body.putString(coupon);
+        }
+        List<String> items = order.getItems();
+        body.putVarLong(items.size());
+        for (String item : items) {
+            body.putString(item);
+        }
+
+        out.putVarLong(body.size);
+        out.put(body.bytes, body.size);
+    }
+
+    // Reads the record starting at the buffer's position, leaving it after the record
+    static StoredOrder decode(ByteBuffer in) {
+        int length = (int) getVarLong(in);
+        int end = in.position() + length;
+        long placedAt = getVarLong(in);
+        String orderId = getString(in);
+        String userId = getString(in);
+        long amount = getVarLong(in);
+        String currency = getString(in);
+        String paymentMethod = getString(in);
+        String shipping = getString(in);
+        String billing = getString(in);
+        int flags = in.get();
+        String coupon = (flags & HAS_COUPON) != 0 ? getString(in) : null;
+        int count = (int) getVarLong(in);
+        String[] items = new String[count];
+        for (int i = 0; i < count; i++) {
+            items[i] = getString(in);
+        }
+        in.position(end);
+
+        Order order = Order.restore(orderId, userId, List.of(items), amount, currency, paymentMethod,
+                shipping, billing, coupon, (flags & GIFT_WRAP) != 0);
+        return new StoredOrder(order, placedAt);
+    }
+
+    static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = (int) getVarLong(in);
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] utf8 = new byte[length];
+            in.get(in.position(), utf8);
+            value = new String(utf8, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return value;
+    }
+}
+
+// Sorted fixed-size index entries in a mapped file, each starting with a
+// 64-bit key. Every SAMPLE-th key is also kept on the heap, so a lookup is a
+// binary search over the samples and then over one block of the file.
+final class SparseIndex {
+    static final int SAMPLE = 64;
+
+    private final ByteBuffer entries;
+    private final int entrySize;
+    private final int count;
+    private final long[] samples;
+
+    SparseIndex(ByteBuffer entries, int entrySize) {
+        this.entries = entries;
+        this.entrySize = entrySize;
+        this.count = entries.capacity() / entrySize;
+        this.samples = new long[(count + SAMPLE - 1) / SAMPLE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = keyAt(i * SAMPLE);
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    long keyAt(int i) {
+        return entries.getLong(i * entrySize);
+    }
+
+    long longAt(int i, int fieldOffset) {
+        return entries.getLong(i * entrySize + fieldOffset);
+    }
+
+    int intAt(int i, int fieldOffset) {
+        return entries.getInt(i * entrySize + fieldOffset);
+    }
+
+    // First entry with this key, or -1
+    int first(long key) {
+        // Last sample < key: the first match can't be before its block
+        int low = 0;
+        int high = samples.length - 1;
+        int block = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (samples[mid] < key) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        low = block * SAMPLE;
+        high = Math.min(count, (block + 1) * SAMPLE + 1) - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long k = keyAt(mid);
+            if (k < key) {
+                low = mid + 1;
+            } else {
+                if (k == key) {
+                    found = mid;
+                }
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+}
+
+// One segment of a time partition on disk:
+//   orders-<partition>.seg   records, append-only
+//   orders-<partition>.uidx  (userHash, -placedAt, offset) sorted: a user's
+//                            orders are adjacent, newest first
+//   orders-<partition>.oidx  (orderHash, offset) sorted
+// Orders arriving after their partition was sealed go to extra segments
+// named orders-<partition>-late<n>.*.
+// While a segment is open for append its indexes live in memory; sealing
+// writes them out and maps everything read-only.
+final class HistorySegment {
+    private static final int USER_ENTRY = 20;
+    private static final int ORDER_ENTRY = 12;
+
+    private final long partition;
+    private final int sequence;
+    private final Path dataFile;
+    private final Path userIndexFile;
+    private final Path orderIndexFile;
+
+    // Active state
+    private FileChannel channel;
+    private final OrderRecordCodec.Output pending = new OrderRecordCodec.Output();
+    private long written;
+    private long[] userHashes = new long[1024];
+    private long[] times = new long[1024];
+    private long[] orderHashes = new long[1024];
+    private int[] offsets = new int[1024];
+    private int entries;
+    // Per-hash chains through the entries (newest appended first), so queries
+    // on the open segment don't scan all of it
+    private int[] previousForUser = new int[1024];
+    private int[] previousForOrder = new int[1024];
+    private Map<Long, Integer> lastForUser = new HashMap<>();
+    private Map<Long, Integer> lastForOrder = new HashMap<>();
+
+    // Sealed state
+    private MappedByteBuffer data;
+    private SparseIndex byUser;
+    private SparseIndex byOrder;
+
+    // Reused by queries (the store is synchronized): a view of the mapped
+    // data, a buffer for flushed records and the open segment's matches
+    private ByteBuffer dataView;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(512);
+    private int[] matches = new int[64];
+
+    private HistorySegment(Path dir, long partition, int sequence) {
+        this.partition = partition;
+        this.sequence = sequence;
+        String base = "orders-" + partition + (sequence == 0 ? "" : "-late" + sequence);
+        this.dataFile = dir.resolve(base + ".seg");
+        this.userIndexFile = dir.resolve(base + ".uidx");
+        this.orderIndexFile = dir.resolve(base + ".oidx");
+    }
+
+    // Parses "orders-<partition>[-late<n>].seg"; null for other files
+    static long[] parseName(String name) {
+        if (!name.startsWith("orders-") || !name.endsWith(".seg")) {
+            return null;
+        }
+        String base = name.substring(7, name.length() - 4);
+        int late = base.indexOf("-late");
+        try {
+            return late < 0
+                    ? new long[] {Long.parseLong(base), 0}
+                    : new long[] {Long.parseLong(base.substring(0, late)), Integer.parseInt(base.substring(late + 5))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static HistorySegment create(Path dir, long partition, int sequence) throws IOException {
+        HistorySegment segment = new HistorySegment(dir, partition, sequence);
+        segment.channel = FileChannel.open(segment.dataFile, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return segment;
+    }
+
+    // Existing sealed segment; indexes are rebuilt from the records if missing (e.g. after a crash)
+    static HistorySegment open(Path dir, long partition, int sequence) throws IOException {
+        HistorySegment segment = new HistorySegment(dir, partition, sequence);
+        if (!Files.exists(segment.userIndexFile) || !Files.exists(segment.orderIndexFile)) {
+            segment.scanRecords();
+            segment.writeIndexes();
+        }
+        segment.mapSealed();
+        return segment;
+    }
+
+    // Existing segment taken back for appending: its index files are dropped
+    // and the in-memory index is rebuilt from the records
+    static HistorySegment reopen(Path dir, long partition, int sequence) throws IOException {
+        HistorySegment segment = new HistorySegment(dir, partition, sequence);
+        Files.deleteIfExists(segment.userIndexFile);
+        Files.deleteIfExists(segment.orderIndexFile);
+        segment.written = segment.scanRecords();
+        segment.channel = FileChannel.open(segment.dataFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return segment;
+    }
+
+    long partition() {
+        return partition;
+    }
+
+    int sequence() {
+        return sequence;
+    }
+
+    boolean isSealed() {
+        return data != null;
+    }
+
+    void append(long userHash, long orderHash, long placedAtMillis, OrderRecordCodec.Output record) throws IOException {
+        long offset = written + pending.size;
+        if (offset + record.size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Partition " + partition + " exceeds 2 GB; use shorter partitions");
+        }
+        pending.put(record.bytes, record.size);
+        if (pending.size >= 64 * 1024) {
+            flush();
+        }
+        index(userHash, orderHash, placedAtMillis, (int) offset);
+    }
+
+    private void index(long userHash, long orderHash, long placedAtMillis, int offset) {
+        if (entries == offsets.length) {
+            int capacity = entries * 2;
+            userHashes = Arrays.copyOf(userHashes, capacity);
+            times = Arrays.copyOf(times, capacity);
+            orderHashes = Arrays.copyOf(orderHashes, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            previousForUser = Arrays.copyOf(previousForUser, capacity);
+            previousForOrder = Arrays.copyOf(previousForOrder, capacity);
+        }
+        userHashes[entries] = userHash;
+        times[entries] = placedAtMillis;
+        orderHashes[entries] = orderHash;
+        offsets[entries] = offset;
+        Integer previous = lastForUser.put(userHash, entries);
+        previousForUser[entries] = previous == null ? -1 : previous;
+        previous = lastForOrder.put(orderHash, entries);
+        previousForOrder[entries] = previous == null ? -1 : previous;
+        entries++;
+    }
+
+    void flush() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(pending.bytes, 0, pending.size);
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, written);
+        }
+        pending.clear();
+    }
+
+    // Writes the sorted indexes and switches to read-only mapped access
+    void seal() throws IOException {
+        flush();
+        channel.force(false);
+        channel.close();
+        channel = null;
+        writeIndexes();
+        mapSealed();
+    }
+
+    // Indexes every complete record in memory. A torn last record (crash in
+    // the middle of a write) is cut off so appends continue after the last
+    // good one. Returns the length of the valid data.
+    private long scanRecords() throws IOException {
+        try (FileChannel file = FileChannel.open(dataFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = file.size();
+            ByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int valid = 0;
+            while (valid < size) {
+                ByteBuffer record = buffer.duplicate().position(valid);
+                StoredOrder stored;
+                int end;
+                try {
+                    long length = OrderRecordCodec.getVarLong(record);
+                    if (length <= 0 || length > record.remaining()) {
+                        break;
+                    }
+                    end = record.position() + (int) length;
+                    stored = OrderRecordCodec.decode(record.position(valid).limit(end));
+                } catch (RuntimeException e) {
+                    // Partial varint or body: the write never completed
+                    break;
+                }
+                Order order = stored.getOrder();
+                index(StringHash.of(order.getUserId()), StringHash.of(order.getOrderId()),
+                        stored.getPlacedAtMillis(), valid);
+                valid = end;
+            }
+            if (valid < size) {
+                file.truncate(valid);
+                file.force(false);
+            }
+            return valid;
+        }
+    }
+
+    private void writeIndexes() throws IOException {
+        int[] order = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            order[i] = i;
+        }
+
+        // Newest first, then (stable) by user: each user's orders stay newest first
+        long[] newestFirst = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            newestFirst[i] = ~times[i];
+        }
+        sortByKey(order, newestFirst);
+        sortByKey(order, userHashes);
+        ByteBuffer users = ByteBuffer.allocate(entries * USER_ENTRY);
+        for (int i : order) {
+            users.putLong(userHashes[i]).putLong(times[i]).putInt(offsets[i]);
+        }
+        writeFile(userIndexFile, users);
+
+        sortByKey(order, orderHashes);
+        ByteBuffer orders = ByteBuffer.allocate(entries * ORDER_ENTRY);
+        for (int i : order) {
+            orders.putLong(orderHashes[i]).putInt(offsets[i]);
+        }
+        writeFile(orderIndexFile, orders);
+
+        userHashes = null;
+        times = null;
+        orderHashes = null;
+        offsets = null;
+        previousForUser = null;
+        previousForOrder = null;
+        lastForUser = null;
+        lastForOrder = null;
+    }
+
+    // Stable LSD radix sort of entry numbers by keys[entry] in signed order, 8 bits per pass
+    private static void sortByKey(int[] order, long[] keys) {
+        int[] from = order;
+        int[] to = new int[order.length];
+        int[] starts = new int[257];
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(starts, 0);
+            for (int i : from) {
+                starts[digit(keys[i], shift) + 1]++;
+            }
+            for (int b = 0; b < 256; b++) {
+                starts[b + 1] += starts[b];
+            }
+            for (int i : from) {
+                to[starts[digit(keys[i], shift)]++] = i;
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        // Eight passes: the result is back in order
+    }
+
+    private static int digit(long key, int shift) {
+        return (int) (((key ^ Long.MIN_VALUE) >>> shift) & 0xFF);
+    }
+
+    private static void writeFile(Path file, ByteBuffer contents) throws IOException {
+        contents.flip();
+        // Written under a temporary name so a crash never leaves a truncated index
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (contents.hasRemaining()) {
+                out.write(contents);
+            }
+            out.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void mapSealed() throws IOException {
+        data = map(dataFile);
+        dataView = data.duplicate();
+        byUser = new SparseIndex(map(userIndexFile), USER_ENTRY);
+        byOrder = new SparseIndex(map(orderIndexFile), ORDER_ENTRY);
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            return in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+    }
+
+    // Up to limit of the user's orders in this segment, newest first
+    void latestForUser(String userId, int limit, List<StoredOrder> out) throws IOException {
+        long userHash = StringHash.of(userId);
+        int added = 0;
+        if (isSealed()) {
+            for (int i = byUser.first(userHash); i >= 0 && i < byUser.size() && added < limit
+                    && byUser.keyAt(i) == userHash; i++) {
+                StoredOrder stored = read(byUser.intAt(i, 16));
+                if (stored.getOrder().getUserId().equals(userId)) {
+                    out.add(stored);
+                    added++;
+                }
+            }
+            return;
+        }
+        // Open segment: follow the user's chain, then order by time. Appends are
+        // only slightly out of order, so insertion sort is close to linear.
+        int count = 0;
+        for (int i = lastForUser.getOrDefault(userHash, -1); i >= 0; i = previousForUser[i]) {
+            if (count == matches.length) {
+                matches = Arrays.copyOf(matches, count * 2);
+            }
+            int k = count++;
+            while (k > 0 && times[matches[k - 1]] < times[i]) {
+                matches[k] = matches[k - 1];
+                k--;
+            }
+            matches[k] = i;
+        }
+        for (int m = 0; m < count && added < limit; m++) {
+            StoredOrder stored = read(offsets[matches[m]]);
+            if (stored.getOrder().getUserId().equals(userId)) {
+                out.add(stored);
+                added++;
+            }
+        }
+    }
+
+    StoredOrder find(String orderId) throws IOException {
+        long orderHash = StringHash.of(orderId);
+        if (isSealed()) {
+            for (int i = byOrder.first(orderHash); i >= 0 && i < byOrder.size()
+                    && byOrder.keyAt(i) == orderHash; i++) {
+                StoredOrder stored = read(byOrder.intAt(i, 8));
+                if (stored.getOrder().getOrderId().equals(orderId)) {
+                    return stored;
+                }
+            }
+            return null;
+        }
+        for (int i = lastForOrder.getOrDefault(orderHash, -1); i >= 0; i = previousForOrder[i]) {
+            StoredOrder stored = read(offsets[i]);
+            if (stored.getOrder().getOrderId().equals(orderId)) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    private StoredOrder read(int offset) throws IOException {
+        if (isSealed()) {
+            return OrderRecordCodec.decode(dataView.clear().position(offset));
+        }
+        if (offset >= written) {
+            // Still in the write buffer
+            return OrderRecordCodec.decode(ByteBuffer.wrap(pending.bytes, 0, pending.size).position((int) (offset - written)));
+        }
+        // One read usually brings the whole record; a longer one is read again in full
+        readBuffer.clear();
+        channel.read(readBuffer, offset);
+        readBuffer.flip();
+        int length = (int) OrderRecordCodec.getVarLong(readBuffer);
+        int total = readBuffer.position() + length;
+        if (total > readBuffer.limit()) {
+            if (total > readBuffer.capacity()) {
+                readBuffer = ByteBuffer.allocate(Math.max(total, readBuffer.capacity() * 2));
+            }
+            readBuffer.clear().limit(total);
+            while (readBuffer.hasRemaining()) {
+                if (channel.read(readBuffer, offset + readBuffer.position()) < 0) {
+                    throw new IOException("Truncated record at " + offset + " in " + dataFile);
+                }
+            }
+            readBuffer.flip();
+        }
+        return OrderRecordCodec.decode(readBuffer.position(0));
+    }
+
+    void close() throws IOException {
+        if (channel != null) {
+            seal();
+        }
+    }
+}
+
+// Order history on local disk, one segment per time partition (e.g. a day).
+// Orders are appended with the time they were placed; moving to a newer
+// partition seals the previous one. An order for an older partition (late
+// across a partition boundary) goes to a late segment of that partition,
+// which stays open until the active partition moves on, so it never
+// disturbs the current one. Queries visit partitions newest first, so
+// "last N orders of a user" touches only as many partitions as it needs,
+// each with one sparse-index lookup per segment. On open, the newest
+// segment is taken back for appending. Methods are synchronized: one
+// writer, short reads.
+class OrderHistoryStore implements AutoCloseable {
+    private final Path dir;
+    private final long partitionMillis;
+    private final TreeMap<Long, List<HistorySegment>> segments = new TreeMap<>();
+    private final Map<Long, HistorySegment> openLate = new HashMap<>();
+    private HistorySegment active;
+    private final OrderRecordCodec.Output body = new OrderRecordCodec.Output();
+    private final OrderRecordCodec.Output record = new OrderRecordCodec.Output();
+
+    OrderHistoryStore(Path dir, long partitionMillis) {
+        if (partitionMillis <= 0) {
+            throw new IllegalArgumentException("Partition length must be positive");
+        }
+        this.dir = dir;
+        this.partitionMillis = partitionMillis;
+        try {
+            Files.createDirectories(dir);
+            List<long[]> found = new ArrayList<>();
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    long[] id = HistorySegment.parseName(file.getFileName().toString());
+                    if (id != null) {
+                        found.add(id);
+                    }
+                }
+            }
+            // The newest partition keeps taking orders after a restart
+            long[] newest = null;
+            for (long[] id : found) {
+                if (id[1] == 0 && (newest == null || id[0] > newest[0])) {
+                    newest = id;
+                }
+            }
+            for (long[] id : found) {
+                HistorySegment segment;
+                if (id == newest) {
+                    segment = HistorySegment.reopen(dir, id[0], 0);
+                    active = segment;
+                } else {
+                    segment = HistorySegment.open(dir, id[0], (int) id[1]);
+                }
+                add(segment);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open order history in " + dir, e);
+        }
+    }
+
+    public synchronized void append(Order order, long placedAtMillis) {
+        long partition = Math.floorDiv(placedAtMillis, partitionMillis);
+        try {
+            HistorySegment target;
+            if (active != null && partition == active.partition()) {
+                target = active;
+            } else if (active == null || partition > active.partition()) {
+                if (active != null) {
+                    active.seal();
+                }
+                sealLateSegments();
+                target = HistorySegment.create(dir, partition, nextSequence(partition));
+                active = target;
+                add(target);
+            } else {
+                target = openLate.get(partition);
+                if (target == null) {
+                    target = HistorySegment.create(dir, partition, nextSequence(partition));
+                    openLate.put(partition, target);
+                    add(target);
+                }
+            }
+            record.clear();
+            OrderRecordCodec.encode(order, placedAtMillis, body, record);
+            target.append(StringHash.of(order.getUserId()), StringHash.of(order.getOrderId()), placedAtMillis, record);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot append order " + order.getOrderId(), e);
+        }
+    }
+
+    private void add(HistorySegment segment) {
+        segments.computeIfAbsent(segment.partition(), p -> new ArrayList<>()).add(segment);
+    }
+
+    private int nextSequence(long partition) {
+        int next = 0;
+        for (HistorySegment segment : segments.getOrDefault(partition, Collections.emptyList())) {
+            next = Math.max(next, segment.sequence() + 1);
+        }
+        return next;
+    }
+
+    private void sealLateSegments() throws IOException {
+        for (HistorySegment late : openLate.values()) {
+            late.seal();
+        }
+        openLate.clear();
+    }
+
+    // The user's most recent orders, newest first
+    public synchronized List<StoredOrder> lastOrdersForUser(String userId, int limit) {
+        List<StoredOrder> result = new ArrayList<>(limit);
+        try {
+            for (List<HistorySegment> partition : segments.descendingMap().values()) {
+                int remaining = limit - result.size();
+                if (remaining <= 0) {
+                    break;
+                }
+                if (partition.size() == 1) {
+                    partition.get(0).latestForUser(userId, remaining, result);
+                    continue;
+                }
+                // Late segments overlap the main one in time: merge newest first
+                List<StoredOrder> merged = new ArrayList<>();
+                for (HistorySegment segment : partition) {
+                    segment.latestForUser(userId, remaining, merged);
+                }
+                merged.sort(Comparator.comparingLong(StoredOrder::getPlacedAtMillis).reversed());
+                result.addAll(merged.subList(0, Math.min(remaining, merged.size())));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read order history", e);
+        }
+        return result;
+    }
+
+    // Null when unknown; newest partitions are searched first
+    public synchronized StoredOrder findOrder(String orderId) {
+        try {
+            for (List<HistorySegment> partition : segments.descendingMap().values()) {
+                for (HistorySegment segment : partition) {
+                    StoredOrder stored = segment.find(orderId);
+                    if (stored != null) {
+                        return stored;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read order history", e);
+        }
+        return null;
+    }
+
+    public synchronized int partitionCount() {
+        return segments.size();
+    }
+
+    public synchronized int segmentCount() {
+        int count = 0;
+        for (List<HistorySegment> partition : segments.values()) {
+            count += partition.size();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (active != null) {
+                active.close();
+                active = null;
+            }
+            sealLateSegments();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot seal order history", e);
+        }
+    }
+}
+
+// ======================= CHECKOUT SAGA =======================
+enum SagaStatus {
+    PENDING,
+    COMPLETED,
+    COMPENSATED,    // a step failed, every finished step was undone
+    FAILED          // a step failed and a compensation failed too
+}
+
+// One checkout: ordered steps plus its own compensation log, so concurrent
+// checkouts never undo each other's work (unlike the shared CheckoutProcessor)
+class CheckoutSaga {
+    private final String orderId;
+    private final List<Command> steps;
+    private final Deque<Command> compensations = new ArrayDeque<>();
+    private volatile SagaStatus status = SagaStatus.PENDING;
+    private volatile Throwable failure;
+
+    CheckoutSaga(String orderId, List<Command> steps) {
+        if (orderId == null || steps == null || steps.isEmpty()) {
+            throw new IllegalArgumentException("Saga needs an order id and at least one step");
+        }
+        this.orderId = orderId;
+        this.steps = new ArrayList<>(steps);
+    }
+
+    public String getOrderId() { return orderId; }
+    public SagaStatus getStatus() { return status; }
+    public Throwable getFailure() { return failure; }
+
+    List<Command> steps() { return steps; }
+    Deque<Command> compensations() { return compensations; }
+
+    void finish(SagaStatus status, Throwable failure) {
+        this.failure = failure;
+        this.status = status;
+    }
+}
+
+// Runs many sagas concurrently. Each step gets stepTimeoutMillis per attempt
+// and up to maxRetries retries with linear backoff; when a step gives up, the
+// saga's finished steps are undone newest first.
+// A step that times out may still be running and may still apply (steps
+// don't have to honour interrupts), so it is never retried while it runs:
+// the engine waits up to SETTLE_FACTOR more timeouts for it. Finishing late
+// counts as success, failing allows a retry. A step that still hasn't settled
+// is abandoned: if it never started it never will, and if it is running and
+// later succeeds, its attempt undoes it right there. So every applied step is
+// undone exactly once and only after it applied; undo() needn't be idempotent.
+// Sagas run on a bounded pool (Java 17 has no virtual threads); pass
+// Executors.newVirtualThreadPerTaskExecutor() as sagaPool on Java 21+.
+// Steps run on their own bounded pool; when it is saturated the attempt fails.
+class SagaEngine implements AutoCloseable {
+
+    static final int DEFAULT_STEP_THREADS = 128;
+    private static final int SETTLE_FACTOR = 10;
+
+    private final ExecutorService sagaPool;
+    private final ThreadPoolExecutor stepPool;
+    private final long stepTimeoutMillis;
+    private final int maxRetries;
+    private final long retryBackoffMillis;
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder compensated = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder lateUndos = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final long createdNanos = System.nanoTime();
+
+    SagaEngine(ExecutorService sagaPool, long stepTimeoutMillis, int maxRetries, long retryBackoffMillis) {
+        this(sagaPool, stepTimeoutMillis, maxRetries, retryBackoffMillis, DEFAULT_STEP_THREADS);
+    }
+
+    SagaEngine(ExecutorService sagaPool, long stepTimeoutMillis, int maxRetries, long retryBackoffMillis,
+               int stepThreads) {
+        if (stepTimeoutMillis <= 0 || maxRetries < 0 || retryBackoffMillis < 0 || stepThreads <= 0) {
+            throw new IllegalArgumentException("Invalid timeout/retry settings");
+        }
+        this.sagaPool = sagaPool;
+        this.stepPool = new ThreadPoolExecutor(stepThreads, stepThreads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(stepThreads * 8), r -> {
+            Thread t = new Thread(r, "saga-step");
+            t.setDaemon(true);
+            return t;
+        });
+        stepPool.allowCoreThreadTimeOut(true);
+        this.stepTimeoutMillis = stepTimeoutMillis;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    public CompletableFuture<SagaStatus> submit(CheckoutSaga saga) {
+        started.increment();
+        inFlight.incrementAndGet();
+        return CompletableFuture.supplyAsync(() -> run(saga), sagaPool)
+                .whenComplete((status, error) -> inFlight.decrementAndGet());
+    }
+
+    private SagaStatus run(CheckoutSaga saga) {
+        for (Command step : saga.steps()) {
+            Throwable error = executeWithRetry(saga, step);
+            if (error != null) {
+                return compensate(saga, error);
+            }
+            saga.compensations().push(step);
+        }
+        saga.finish(SagaStatus.COMPLETED, null);
+        completed.increment();
+        return SagaStatus.COMPLETED;
+    }
+
+    // Returns null on success, otherwise the last failure. A step that timed out
+    // and never settled is abandoned before giving up.
+    private Throwable executeWithRetry(CheckoutSaga saga, Command step) {
+        Throwable last = null;
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0) {
+                retries.increment();
+                try {
+                    Thread.sleep(retryBackoffMillis * attempt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return e;
+                }
+            }
+            Attempt run = new Attempt(step, lateUndos);
+            Future<?> future;
+            try {
+                future = stepPool.submit(run);
+            } catch (RejectedExecutionException e) {
+                last = e;
+                continue;
+            }
+            try {
+                try {
+                    future.get(stepTimeoutMillis, TimeUnit.MILLISECONDS);
+                    return null;
+                } catch (TimeoutException e) {
+                    timeouts.increment();
+                    last = e;
+                    // Let the attempt settle before deciding: running it again now could apply it twice
+                    future.get(stepTimeoutMillis * SETTLE_FACTOR, TimeUnit.MILLISECONDS);
+                    return null;
+                }
+            } catch (TimeoutException e) {
+                if (run.abandon()) {
+                    // Drops it if queued; a running step is left to finish, not interrupted midway
+                    future.cancel(false);
+                    return last;
+                }
+                // Settled just now: take its outcome
+                Throwable outcome = run.failure();
+                if (outcome == null) {
+                    return null;
+                }
+                last = outcome;
+            } catch (ExecutionException e) {
+                last = e.getCause();
+            } catch (InterruptedException e) {
+                if (run.abandon()) {
+                    future.cancel(false);
+                } else if (run.failure() == null) {
+                    saga.compensations().push(step);
+                }
+                Thread.currentThread().interrupt();
+                return e;
+            }
+        }
+        return last;
+    }
+
+    // One execution of a step. Whoever moves it out of QUEUED or RUNNING first
+    // decides: the attempt (it ran) or the saga (it gave up). An attempt
+    // abandoned while running undoes its own step if it applied.
+    private static final class Attempt implements Runnable {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int SUCCEEDED = 2;
+        private static final int FAILED = 3;
+        private static final int ABANDONED = 4;
+
+        private final Command step;
+        private final LongAdder lateUndos;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private volatile Throwable failure;
+
+        Attempt(Command step, LongAdder lateUndos) {
+            this.step = step;
+            this.lateUndos = lateUndos;
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                return;
+            }
+            try {
+                step.execute();
+            } catch (RuntimeException | Error e) {
+                failure = e;
+                state.compareAndSet(RUNNING, FAILED);
+                throw e;
+            }
+            if (!state.compareAndSet(RUNNING, SUCCEEDED)) {
+                // The saga already moved on and compensated the rest without this step
+                step.undo();
+                lateUndos.increment();
+            }
+        }
+
+        // True if the attempt hadn't settled: it will never run, or will undo itself
+        boolean abandon() {
+            return state.compareAndSet(QUEUED, ABANDONED) || state.compareAndSet(RUNNING, ABANDONED);
+        }
+
+        // After a failed abandon(): null if the step applied
+        Throwable failure() {
+            return state.get() == SUCCEEDED ? null : failure;
+        }
+    }
+
+    private SagaStatus compensate(CheckoutSaga saga, Throwable cause) {
+        boolean clean = true;
+        while (!saga.compensations().isEmpty()) {
+            try {
+                saga.compensations().pop().undo();
+            } catch (RuntimeException e) {
+                cause.addSuppressed(e);
+                clean = false;
+            }
+        }
+        SagaStatus status = clean ? SagaStatus.COMPENSATED : SagaStatus.FAILED;
+        saga.finish(status, cause);
+        (clean ? compensated : failed).increment();
+        return status;
+    }
+
+    public long getStarted() { return started.sum(); }
+    public long getCompleted() { return completed.sum(); }
+    public long getCompensated() { return compensated.sum(); }
+    public long getFailed() { return failed.sum(); }
+    public long getRetries() { return retries.sum(); }
+    public long getTimeouts() { return timeouts.sum(); }
+    // Abandoned steps that applied anyway and were undone by their attempt
+    public long getLateUndos() { return lateUndos.sum(); }
+    public int getInFlight() { return inFlight.get(); }
+
+    // Finished sagas per second since the engine was created
+    public double throughputPerSecond() {
+        double seconds = (System.nanoTime() - createdNanos) / 1e9;
+        return (completed.sum() + compensated.sum() + failed.sum()) / seconds;
+    }
+
+    @Override
+    public void close() {
+        sagaPool.shutdown();
+        try {
+            sagaPool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stepPool.shutdownNow();
+    }
+}
+
+// ======================= MAIN =======================
+public class Main {
+    // Bytes allocated and time per order on this thread, after warm-up
+    private static String measureOrderBuilds(List<String> items) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int orders = 500_000;
+        long checksum = 0;
+        long bytes = 0;
+        long nanos = 0;
+        for (int round = 0; round < 3; round++) {
+            long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                checksum += new Order.OrderBuilder("ORD", "U1", items, 100 + i)
+                        .setShippingAddress("Bangalore").setBillingAddress("Bangalore")
+                        .setPaymentMethod("UPI").setCurrency("INR")
+                        .tryBuild().getAmountMinor();
+            }
+            nanos = System.nanoTime() - start;
+            bytes = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+        }
+        return String.format("%d bytes/order, %.0f orders/s (checksum %d)",
+                bytes / orders, orders / (nanos / 1e9), checksum);
+    }
+
+    public static void main(String[] args) {
+
+        Order order = new Order.OrderBuilder(
+                "ORD101",
+                "USER42",
+                List.of("Laptop", "Mouse"),
+                1200_00
+        )
+        .setShippingAddress("Pune")
+        .setBillingAddress("Pune")
+        .setPaymentMethod("UPI")
+        .setCurrency("INR")
+        .build();
+
+        Discount discount = new Discount(new PercentDiscount());
+
+        CheckoutProcessor checkout = new CheckoutProcessor();
+
+        checkout.executeCommand(new ApplyDiscountCommand(order, discount));
         checkout.executeCommand(new ProcessPaymentCommand(order));
 
         System.out.println("\n--- Rolling back checkout ---");
         checkout.rollback();
+
+        System.out.println("\n--- Pricing a cart page ---");
+        long[] cartTotals = {250_00, 799_00, 1200_00, 1999_00, 3200_00};
+        long[] discounted = new long[cartTotals.length];
+        discount.discountAll(cartTotals, "INR", discounted);
+        System.out.println(Arrays.toString(cartTotals) + " -> " + Arrays.toString(discounted));
+        // Same rules in a currency without minor units: thresholds and flat amounts stay in yen
+        System.out.println(discount.discount(Money.parse("1200", "JPY")) + " | " +
+                new Discount(new FlatDiscount()).discount(Money.parse("1200", "JPY")));
+
+        System.out.println("\n--- Evaluating carts against 300 promotions ---");
+        List<String> promotionConfig = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            promotionConfig.add("TIERED;season-" + i + ";" + (300 + i) + ":2," + (1000 + i) + ":4," + (5000 + i) + ":6");
+            promotionConfig.add("FLAT;flat-" + i + ";" + (200 + 10 * i) + ":" + (20 + i));
+            promotionConfig.add("PERCENT;bank-" + i + ";" + (2000 + 50 * i) + ":" + (1 + i % 8));
+        }
+        CompiledPromotions promotions = PromotionCompiler.compile(promotionConfig);
+        DiscountResult best = new DiscountResult();
+        int carts = 100_000;
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < carts; i++) {
+            checksum += promotions.DiscountProcess((100 + (i % 9000)) * 100L, "INR", best).getTotal();
+        }
+        long perCart = (System.nanoTime() - start) / carts;
+        System.out.println(promotions.size() + " promotions, " + perCart + " ns per cart (checksum " + checksum + ")");
+        System.out.println("Cart of 4500: " + promotions.DiscountProcess(4500_00, "INR", best.in("INR")) + " via " + best.getRule());
+
+        System.out.println("\n--- Line-item cart pricing ---");
+        PricingPipeline pipeline = new PricingPipeline(
+                new ItemDiscountStage(Map.of("Mouse", 1_000, "SKU-7", 500)),
+                new CartDiscountStage(PromotionCompiler.compile(List.of("TIERED;b2b;20000:2,1000000:3"))),
+                new TaxStage(1_800),
+                new ShippingStage(4_900, 50_000));
+        Order cartOrder = new Order.OrderBuilder("ORD102", "U1", Arrays.asList("Laptop", "Mouse"), 46_598_00)
+                .setShippingAddress("Bangalore")
+                .setBillingAddress("Bangalore")
+                .setPaymentMethod("UPI")
+                .setCurrency("INR")
+                .setCart(new Cart("INR").add("Laptop", 1, 45_000_00).add(new LineItem("Mouse", 2, 799_00)))
+                .build();
+        System.out.println(cartOrder.getCart().get(1) + " | " + pipeline.price(cartOrder.getCart()));
+        Order.OrderBuilder mismatched = new Order.OrderBuilder("ORD105", "U1", List.of("Laptop"), 1_00)
+                .setShippingAddress("Bangalore")
+                .setBillingAddress("Bangalore")
+                .setPaymentMethod("UPI")
+                .setCurrency("INR")
+                .setCart(new Cart("INR").add("Laptop", 1, 45_000_00));
+        System.out.println("ORD105: " + (mismatched.tryBuild() == null
+                ? OrderError.describe(mismatched.getErrors()) : "built"));
+
+        Cart b2b = new Cart("INR", 10_000);
+        for (int i = 0; i < 10_000; i++) {
+            b2b.add("SKU-" + (i % 500), 1 + i % 20, 99 + (i * 37L) % 50_000);
+        }
+        PricedCart priced = null;
+        for (int i = 0; i < 2_000; i++) {
+            priced = pipeline.price(b2b);
+        }
+        int runs = 1_000;
+        long pricingStart = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            priced = pipeline.price(b2b);
+        }
+        System.out.printf("%s%n%.1f us per 10k-line cart%n", priced, (System.nanoTime() - pricingStart) / 1e3 / runs);
+
+        System.out.println("\n--- Order builder validation ---");
+        Order.OrderBuilder invalid = new Order.OrderBuilder().setOrderId("ORD103").setAmount(-5);
+        if (invalid.tryBuild() == null) {
+            System.out.println("Rejected: " + OrderError.describe(invalid.getErrors()));
+        }
+        List<String> basket = List.of("Laptop", "Mouse");
+        System.out.printf("builder per order: %s%n", measureOrderBuilds(basket));
+
+        System.out.println("\n--- Money and exact reports ---");
+        ExchangeRates rates = new ExchangeRates();
+        rates.setRate("USD", "INR", "83.12");
+        rates.setRate("EUR", "INR", "90.05");
+        rates.setRate("JPY", "INR", "0.5567");
+        Money price = Money.parse("19.99", "USD");
+        System.out.println(price.times(3).plus(Money.of(1, "USD")) + " = " + rates.convert(price.times(3).plus(Money.of(1, "USD")), "INR"));
+        System.out.println(Money.parse("1500", "JPY") + " = " + rates.convert(Money.parse("1500", "JPY"), "INR"));
+
+        // Sum 5 million orders: exact in minor units, drifting in double
+        MoneyTotals report = new MoneyTotals();
+        String[] currencies = {"INR", "USD", "EUR", "JPY"};
+        double naive = 0;
+        long reportStart = System.nanoTime();
+        for (int i = 0; i < 5_000_000; i++) {
+            String currency = currencies[i & 3];
+            long minor = currency.equals("JPY") ? 1_999 : 19_99;
+            report.add(minor, currency);
+            if (currency.equals("USD")) {
+                naive += 19.99;
+            }
+        }
+        long reportMillis = (System.nanoTime() - reportStart) / 1_000_000;
+        for (String currency : report.currencies()) {
+            System.out.println("  " + report.total(currency));
+        }
+        System.out.printf("USD as double: %.6f%n", naive);
+        System.out.println(report.getCount() + " orders in " + reportMillis + " ms, all in INR: " + report.totalIn("INR", rates));
+
+        System.out.println("\n--- Single-use coupons ---");
+        try (CouponService coupons = new CouponService(2_000_000)) {
+            long issueStart = System.nanoTime();
+            for (int i = 0; i < 2_000_000; i++) {
+                coupons.issue("SAVE-" + Integer.toString(i, 36).toUpperCase(), 100_00);
+            }
+            System.out.printf("Issued %d coupons in %d ms%n",
+                    coupons.getIssuedCount(), (System.nanoTime() - issueStart) / 1_000_000);
+
+            Order couponOrder = new Order.OrderBuilder()
+                    .setOrderId("ORD104").setUserId("U7").setItems(List.of("Laptop")).setAmount(45_000_00)
+                    .setShippingAddress("Delhi").setBillingAddress("Delhi")
+                    .setPaymentMethod("CARD").setCurrency("INR").setCouponCode("SAVE-1Z")
+                    .build();
+            CheckoutProcessor couponCheckout = new CheckoutProcessor();
+            RedeemCouponCommand redeem = new RedeemCouponCommand(couponOrder, coupons);
+            couponCheckout.executeCommand(redeem);
+            couponCheckout.executeCommand(new ProcessPaymentCommand(couponOrder, redeem));
+            System.out.println("Second use: " + (coupons.redeem("SAVE-1Z") == CouponService.ALREADY_REDEEMED ? "rejected" : "accepted"));
+            couponCheckout.rollback();
+            System.out.println("After rollback: " + Money.of(coupons.redeem("SAVE-1Z"), "INR") + " redeemable again");
+
+            // Guessing traffic: the bloom filter answers nearly all of it
+            long lookupsBefore = coupons.getLookupCount();
+            for (int i = 0; i < 1_000_000; i++) {
+                coupons.redeem("GUESS-" + i);
+            }
+            System.out.printf("1000000 invalid codes: %d filtered, %d reached the table%n",
+                    coupons.getFilteredCount(), coupons.getLookupCount() - lookupsBefore);
+
+            // Eight checkouts race for the same 100k coupons: each is redeemed exactly once
+            LongAdder won = new LongAdder();
+            ExecutorService racers = Executors.newFixedThreadPool(8);
+            for (int t = 0; t < 8; t++) {
+                racers.submit(() -> {
+                    for (int i = 100_000; i < 200_000; i++) {
+                        if (coupons.redeem("SAVE-" + Integer.toString(i, 36).toUpperCase()) >= 0) {
+                            won.increment();
+                        }
+                    }
+                });
+            }
+            racers.shutdown();
+            try {
+                racers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("Redeemed " + won.sum() + " of 100000 contested coupons");
+        }
+
+        // File-backed table: redemptions survive closing and reopening the service
+        try {
+            Path couponFile = Files.createTempFile("coupons", ".tbl");
+            try {
+                try (CouponService stored = new CouponService(1_000, couponFile)) {
+                    stored.issue("WELCOME", 250_00);
+                    stored.issue("REPEAT", 100_00);
+                    stored.redeem("REPEAT");
+                }
+                try (CouponService reopened = new CouponService(1_000, couponFile)) {
+                    System.out.println("After restart: " + reopened.getIssuedCount() + " coupons, WELCOME "
+                            + Money.of(reopened.redeem("WELCOME"), "INR") + ", REPEAT "
+                            + (reopened.redeem("REPEAT") == CouponService.ALREADY_REDEEMED ? "already used" : "usable"));
+                }
+            } finally {
+                Files.deleteIfExists(couponFile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        System.out.println("\n--- Checkout step metrics ---");
+        try (CheckoutMetrics metrics = new CheckoutMetrics()) {
+            metrics.startReporting(250, line -> System.out.println("  [report] " + line));
+            ExecutorService shoppers = Executors.newFixedThreadPool(8);
+            Cart smallCart = new Cart("INR").add("Laptop", 1, 45_000_00).add("Mouse", 2, 799_00);
+            for (int t = 0; t < 8; t++) {
+                shoppers.submit(() -> {
+                    for (int i = 0; i < 2_000; i++) {
+                        final boolean declined = i % 100 == 0;
+                        CheckoutProcessor processor = new CheckoutProcessor(metrics);
+                        try {
+                            processor.executeCommand(metrics.wrap(new Command() {
+                                public void execute() {
+                                    pipeline.price(smallCart);
+                                }
+
+                                public void undo() {
+                                }
+                            }, "PriceCart"));
+                            processor.executeCommand(metrics.wrap(new Command() {
+                                public void execute() {
+                                    // Payment gateway round trip
+                                    LockSupport.parkNanos(100_000);
+                                    if (declined) {
+                                        throw new IllegalStateException("Card declined");
+                                    }
+                                }
+
+                                public void undo() {
+                                }
+                            }, "ChargeCard"));
+                        } catch (IllegalStateException e) {
+                            processor.rollback();
+                        }
+                    }
+                });
+            }
+            shoppers.shutdown();
+            try {
+                shoppers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("Final:");
+            for (CommandStats stats : metrics.snapshot()) {
+                System.out.println("  " + stats);
+            }
+        }
+
+        System.out.println("\n--- Order history ---");
+        Path historyDir;
+        try {
+            historyDir = Files.createTempDirectory("order-history");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        long day = TimeUnit.DAYS.toMillis(1);
+        long firstDay = 1_767_225_600_000L; // 2026-01-01
+        int historyOrders = 2_000_000;
+        long appendStart = System.nanoTime();
+        try (OrderHistoryStore history = new OrderHistoryStore(historyDir, day)) {
+            List<String> basketItems = List.of("Laptop", "Mouse");
+            for (int i = 0; i < historyOrders; i++) {
+                Order placed = new Order.OrderBuilder()
+                        .setOrderId("H" + i).setUserId("U" + (i * 7919 % 20_000)).setItems(basketItems)
+                        .setAmount(500_00 + i % 100_000).setCurrency("INR").setPaymentMethod("UPI")
+                        .setShippingAddress("Pune").setBillingAddress("Pune")
+                        .build();
+                history.append(placed, firstDay + (long) i * 30 * day / historyOrders);
+            }
+        }
+        System.out.printf("Appended %d orders in %d ms%n", historyOrders, (System.nanoTime() - appendStart) / 1_000_000);
+
+        // Simulate a crash in the middle of writing a record to the newest partition
+        long lastDay = Math.floorDiv(firstDay, day) + 29;
+        try (FileChannel newest = FileChannel.open(historyDir.resolve("orders-" + lastDay + ".seg"),
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            newest.write(ByteBuffer.wrap(new byte[] {(byte) 0x90, 0x01, 0x05, 'H'}));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // Reopened from disk: the torn record is cut off, today's partition keeps
+        // taking orders and a late order for an earlier day gets its own segment
+        try (OrderHistoryStore history = new OrderHistoryStore(historyDir, day)) {
+            Order.OrderBuilder again = new Order.OrderBuilder()
+                    .setUserId("U42").setItems(List.of("Keyboard")).setAmount(2_499_00).setCurrency("INR")
+                    .setPaymentMethod("UPI").setShippingAddress("Pune").setBillingAddress("Pune");
+            history.append(again.setOrderId("AFTER-RESTART").build(), firstDay + 30 * day - 1);
+            history.append(again.setOrderId("LATE-DAY-3").build(), firstDay + 3 * day);
+            // Written when free orders were still allowed; today's rules reject amount 0
+            history.append(Order.restore("LEGACY-FREE", "U7", List.of("Sample"), 0, "INR", "NONE",
+                    "Pune", "Pune", null, false), firstDay + 29 * day);
+            System.out.println(history.segmentCount() + " segments after restart; U42 newest: " +
+                    history.lastOrdersForUser("U42", 1).get(0).getOrder().getOrderId() +
+                    ", late order found: " + (history.findOrder("LATE-DAY-3") != null));
+        }
+
+        try (OrderHistoryStore history = new OrderHistoryStore(historyDir, day)) {
+            List<StoredOrder> latest = history.lastOrdersForUser("U42", 50);
+            System.out.println(history.partitionCount() + " partitions; U42 has " + latest.size() +
+                    " recent orders, newest " + latest.get(0));
+            System.out.println("Lookup H123456: " + history.findOrder("H123456"));
+            System.out.println("Lookup LEGACY-FREE: " + history.findOrder("LEGACY-FREE"));
+
+            int queries = 2_000;
+            long found = 0;
+            long queryStart = System.nanoTime();
+            for (int q = 0; q < queries; q++) {
+                found += history.lastOrdersForUser("U" + (q * 37 % 20_000), 50).size();
+            }
+            System.out.printf("last 50 orders for user: %.0f us per query (%d orders read)%n",
+                    (System.nanoTime() - queryStart) / 1e3 / queries, found);
+        }
+        try (Stream<Path> files = Files.walk(historyDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        System.out.println("\n--- Concurrent checkout sagas ---");
+        try (SagaEngine engine = new SagaEngine(Executors.newFixedThreadPool(64), 200, 2, 5)) {
+            // One real checkout with the existing commands
+            CheckoutSaga single = new CheckoutSaga(order.getOrderId(), Arrays.asList(
+                    new ApplyDiscountCommand(order, discount),
+                    new ProcessPaymentCommand(order)));
+            System.out.println("Saga " + single.getOrderId() + ": " + engine.submit(single).join());
+
+            // Thousands of checkouts; every 50th payment gateway call keeps failing
+            List<CompletableFuture<SagaStatus>> results = new ArrayList<>();
+            for (int i = 0; i < 5000; i++) {
+                final boolean gatewayDown = i % 50 == 0;
+                Command reserve = new Command() {
+                    public void execute() {
+                    }
+
+                    public void undo() {
+                    }
+                };
+                Command pay = new Command() {
+                    public void execute() {
+                        if (gatewayDown) {
+                            throw new IllegalStateException("Payment gateway unavailable");
+                        }
+                    }
+
+                    public void undo() {
+                    }
+                };
+                results.add(engine.submit(new CheckoutSaga("LOAD-" + i, Arrays.asList(reserve, pay))));
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+            System.out.printf("completed=%d compensated=%d failed=%d retries=%d throughput=%.0f sagas/s%n",
+                    engine.getCompleted(), engine.getCompensated(), engine.getFailed(),
+                    engine.getRetries(), engine.throughputPerSecond());
+
+            // A slow gateway answers after the timeout: the card is charged once, not once per retry
+            AtomicInteger charges = new AtomicInteger();
+            Command slowPay = new Command() {
+                public void execute() {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(300));
+                    charges.incrementAndGet();
+                }
+
+                public void undo() {
+                }
+            };
+            SagaStatus slow = engine.submit(new CheckoutSaga("SLOW-1", List.of(slowPay))).join();
+            System.out.println("Slow payment saga: " + slow + ", charged " + charges.get() +
+                    " time(s), timeouts=" + engine.getTimeouts());
+        }
+
+        // A payment that outlasts even the settle window: the saga gives up, and
+        // the charge that lands later is refunded once by its own attempt
+        try (SagaEngine engine = new SagaEngine(Executors.newFixedThreadPool(2), 20, 0, 0)) {
+            AtomicInteger charged = new AtomicInteger();
+            AtomicInteger refunded = new AtomicInteger();
+            Command stuckPay = new Command() {
+                public void execute() {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(400));
+                    charged.incrementAndGet();
+                }
+
+                public void undo() {
+                    refunded.incrementAndGet();
+                }
+            };
+            SagaStatus stuck = engine.submit(new CheckoutSaga("STUCK-1", List.of(stuckPay))).join();
+            System.out.println("Stuck payment saga: " + stuck + ", charged " + charged.get() +
+                    ", refunded " + refunded.get());
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(400));
+            System.out.println("After it finished: charged " + charged.get() + ", refunded " + refunded.get() +
+                    ", late undos " + engine.getLateUndos());
+        }
+
+        System.out.println("\n--- Inventory reservation ---");
+        try (InventoryService inventory = new InventoryService(200, 10)) {
+            inventory.addStock("Laptop", 5);
+            inventory.addStock("Mouse", 5);
+
+            CheckoutProcessor reserving = new CheckoutProcessor();
+            ReserveInventoryCommand reserve = new ReserveInventoryCommand(order, inventory);
+            reserving.executeCommand(reserve);
+            System.out.println("Laptops left: " + inventory.available("Laptop"));
+            reserving.rollback();
+            System.out.println("Laptops after rollback: " + inventory.available("Laptop"));
+
+            // Flash sale on a hot SKU: no overselling under contention
+            inventory.addStock("Phone", 100_000);
+            int threads = 8;
+            LongAdder sold = new LongAdder();
+            ExecutorService buyers = Executors.newFixedThreadPool(threads);
+            long saleStart = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                buyers.submit(() -> {
+                    List<String> phone = Collections.singletonList("Phone");
+                    for (int i = 0; i < 20_000; i++) {
+                        try {
+                            inventory.confirm(inventory.reserve(phone));
+                            sold.increment();
+                        } catch (IllegalStateException e) {
+                            // sold out
+                        }
+                    }
+                });
+            }
+            buyers.shutdown();
+            try {
+                buyers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long saleNanos = System.nanoTime() - saleStart;
+            System.out.printf("Sold %d of 100000 phones (left %d) at %.0f reservations/s%n",
+                    sold.sum(), inventory.available("Phone"), threads * 20_000 / (saleNanos / 1e9));
+
+            // Lots of 3 leave odd units on the stripes; buyers stop at their first sold-out
+            inventory.addStock("Console", 3_000);
+            LongAdder lots = new LongAdder();
+            ExecutorService bulkBuyers = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t < threads; t++) {
+                bulkBuyers.submit(() -> {
+                    List<String> lot = Collections.nCopies(3, "Console");
+                    try {
+                        while (true) {
+                            inventory.confirm(inventory.reserve(lot));
+                            lots.increment();
+                        }
+                    } catch (IllegalStateException e) {
+                        // sold out
+                    }
+                });
+            }
+            bulkBuyers.shutdown();
+            try {
+                bulkBuyers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("Sold " + lots.sum() + " lots of 3 consoles (left " +
+                    inventory.available("Console") + ")");
+
+            // Abandoned checkout: the reservation expires and stock comes back
+            inventory.reserve(Arrays.asList("Laptop", "Laptop"));
+            System.out.println("Laptops while held: " + inventory.available("Laptop"));
+            try {
+                Thread.sleep(400);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("Laptops after expiry: " + inventory.available("Laptop") +
+                    " (expired " + inventory.getExpiredCount() + ")");
+        }
     }
 }
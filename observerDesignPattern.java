@@ -43,13 +43,42 @@ Observer Design Pattern (Behavioral)
 ┌─────────┴───┐ ┌───┴────────┐ ┌────────┴────────┐ ┌────────┴────────┐
 │ CustomerApp │ │ EmailService│ │ WarehouseService │ │ PaymentService  │
 └─────────────┘ └─────────────┘ └─────────────────┘ └─────────────────┘
+          │         │         │         │
+          └─────────┴────┬────┴─────────┘
+                         │ publish(OrderEvent)
+┌────────────────────────▼──────────────┐
+│              EventSink                 │
+│──────────────────────────────────────│
+│ +publish(event)                       │
+│ +close()                              │
+└────────────────────────▲──────────────┘
+                         │ implements
+┌────────────────────────┴──────────────┐
+│          AsyncFileEventSink            │
+│──────────────────────────────────────│
+│ - ring : lock-free ring buffer        │
+│ - drainer : background Thread         │
+│ - channel : FileChannel (batched)     │
+└───────────────────────────────────────┘
 
 
 
 #Code Implementation
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /*
  * Enum representing all possible states of an Order
@@ -123,14 +152,305 @@ class Order implements OrderSubject {
     }
 }
 
+/*
+ * Structured record written by observers instead of a formatted println
+ * Immutable, so it can be handed to the sink thread without copying
+ */
+final class OrderEvent {
+    private final long timestamp;
+    private final String source;
+    private final String orderId;
+    private final OrderStatus status;
+    private final String message;
+
+    public OrderEvent(String source, String orderId, OrderStatus status, String message) {
+        this.timestamp = System.currentTimeMillis();
+        this.source = source;
+        this.orderId = orderId;
+        this.status = status;
+        this.message = message;
+    }
+
+    public long getTimestamp() { return timestamp; }
+    public String getSource() { return source; }
+    public String getOrderId() { return orderId; }
+    public OrderStatus getStatus() { return status; }
+    public String getMessage() { return message; }
+
+    // One line per event: ts=<millis> source=<name> orderId=<id> status=<status> msg="<text>"
+    // msg is always quoted, source and orderId only when they contain a space,
+    // '=' or '"'; quoted text escapes \\, \", newlines and other control characters
+    public String toLine() {
+        StringBuilder line = new StringBuilder(96);
+        line.append("ts=").append(timestamp);
+        line.append(" source=");
+        appendValue(line, source, false);
+        line.append(" orderId=");
+        appendValue(line, orderId, false);
+        line.append(" status=").append(status);
+        line.append(" msg=");
+        appendValue(line, message, true);
+        return line.append('\n').toString();
+    }
+
+    private static void appendValue(StringBuilder line, String value, boolean alwaysQuote) {
+        String text = String.valueOf(value);
+        if (!alwaysQuote && !needsQuotes(text)) {
+            line.append(text);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': line.append("\\\""); break;
+                case '\\': line.append("\\\\"); break;
+                case '\n': line.append("\\n"); break;
+                case '\r': line.append("\\r"); break;
+                case '\t': line.append("\\t"); break;
+                default:
+                    if (c < 0x20 || c == 0x7F || c == '\u2028' || c == '\u2029') {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+        line.append('"');
+    }
+
+    private static boolean needsQuotes(String text) {
+        if (text.isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c <= ' ' || c == '=' || c == '"' || c == '\\' || c == 0x7F || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+/*
+ * Sink interface
+ * Observers publish events here; how/where they are written is pluggable
+ */
+interface EventSink extends AutoCloseable {
+    void publish(OrderEvent event);
+
+    @Override
+    void close();
+}
+
+/*
+ * Asynchronous file sink
+ * Producers (observers) only claim a slot in a lock-free ring buffer,
+ * a single background thread drains the ring in batches into a
+ * buffered FileChannel, so the notify path never blocks on I/O
+ */
+class AsyncFileEventSink implements EventSink {
+
+    private static final int BATCH_BYTES = 64 * 1024;
+    static final long DEFAULT_PUBLISH_TIMEOUT_MILLIS = 1_000;
+
+    // Set in tail by close(): a producer's CAS on tail then fails and it sees the sink closed
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final AtomicReferenceArray<OrderEvent> ring;
+    private final int mask;
+
+    // Next slot a producer will claim (many producers, CAS), plus the CLOSED bit
+    private final AtomicLong tail = new AtomicLong();
+    // Next slot the drainer will read (single consumer)
+    private volatile long head;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_BYTES);
+    private final Thread drainer;
+    private final AtomicLong written = new AtomicLong();
+    private final long publishTimeoutNanos;
+    private volatile boolean running = true;
+    // Why the drainer stopped early (e.g. a write failed), or null
+    private volatile Throwable failure;
+
+    public AsyncFileEventSink(Path file, int capacity) {
+        this(file, capacity, DEFAULT_PUBLISH_TIMEOUT_MILLIS);
+    }
+
+    // Capacity is rounded up to a power of two so slot index is a mask;
+    // publish gives up after publishTimeoutMillis if the ring stays full
+    public AsyncFileEventSink(Path file, int capacity, long publishTimeoutMillis) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (publishTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Publish timeout must be positive");
+        }
+        this.publishTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(publishTimeoutMillis);
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        if (size <= 0) {
+            size = 1;
+        }
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+
+        try {
+            this.channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open event log " + file, e);
+        }
+
+        this.drainer = new Thread(this::drainLoop, "event-sink-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    // Claim a slot with CAS; if the ring is full, wait for the drainer to catch up,
+    // failing fast if it has died and giving up after the publish timeout
+    @Override
+    public void publish(OrderEvent event) {
+        long deadline = 0;
+        int spins = 0;
+        while (true) {
+            long t = tail.get();
+            if ((t & CLOSED) != 0) {
+                throw new IllegalStateException("Sink is closed");
+            }
+            if (t - head >= ring.length()) {
+                if (failure != null || !drainer.isAlive()) {
+                    throw new IllegalStateException("Event sink drainer stopped", failure);
+                }
+                if (deadline == 0) {
+                    deadline = System.nanoTime() + publishTimeoutNanos;
+                } else if (System.nanoTime() - deadline > 0) {
+                    throw new IllegalStateException("Event ring full for " +
+                            TimeUnit.NANOSECONDS.toMillis(publishTimeoutNanos) + " ms");
+                }
+                if (++spins < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(10_000);
+                }
+                continue;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                ring.lazySet((int) (t & mask), event);
+                return;
+            }
+        }
+    }
+
+    // Background loop: drain whatever is ready, park briefly when idle
+    private void drainLoop() {
+        try {
+            while (running) {
+                if (drainBatch() == 0) {
+                    LockSupport.parkNanos(100_000);
+                }
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+    }
+
+    // Read published slots in order; stop at the first slot still being filled
+    private int drainBatch() {
+        int count = 0;
+        long h = head;
+        OrderEvent event;
+        while ((event = ring.get((int) (h & mask))) != null) {
+            ring.lazySet((int) (h & mask), null);
+            h++;
+            head = h;
+            append(event);
+            count++;
+        }
+        if (count > 0) {
+            flush();
+            written.addAndGet(count);
+        }
+        return count;
+    }
+
+    private void append(OrderEvent event) {
+        byte[] line = event.toLine().getBytes(StandardCharsets.UTF_8);
+        if (buffer.remaining() < line.length) {
+            flush();
+        }
+        if (line.length > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(line));
+            return;
+        }
+        buffer.put(line);
+    }
+
+    private void flush() {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer src) {
+        try {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed writing event log", e);
+        }
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    // Stop new claims, stop the drainer, write out everything still in the ring
+    // (including slots claimed just before the CLOSED bit was set) and close the file
+    @Override
+    public void close() {
+        long end = tail.getAndUpdate(t -> t | CLOSED);
+        if ((end & CLOSED) != 0) {
+            return;
+        }
+        running = false;
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while (head != end) {
+            if (drainBatch() == 0) {
+                Thread.onSpinWait();
+            }
+        }
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed closing event log", e);
+        }
+    }
+}
+
 /*
  * Customer App Observer
  * Receives updates for ALL order states
  */
 class CustomerApp implements OrderObserver {
+    private final EventSink sink;
+
+    public CustomerApp(EventSink sink) {
+        this.sink = sink;
+    }
+
     @Override
     public void update(String orderId, OrderStatus status) {
-        System.out.println("Customer App: Order " + orderId + " -> " + status);
+        sink.publish(new OrderEvent("CustomerApp", orderId, status, "Order status pushed to app"));
     }
 }
 
@@ -139,9 +459,15 @@ class CustomerApp implements OrderObserver {
  * Sends email notifications for ALL order states
  */
 class EmailService implements OrderObserver {
+    private final EventSink sink;
+
+    public EmailService(EventSink sink) {
+        this.sink = sink;
+    }
+
     @Override
     public void update(String orderId, OrderStatus status) {
-        System.out.println("Email Service: Order " + orderId + " -> " + status);
+        sink.publish(new OrderEvent("EmailService", orderId, status, "Email notification sent"));
     }
 }
 
@@ -151,14 +477,19 @@ class EmailService implements OrderObserver {
  * (Confirmed, Shipped, Cancelled)
  */
 class WarehouseService implements OrderObserver {
+    private final EventSink sink;
+
+    public WarehouseService(EventSink sink) {
+        this.sink = sink;
+    }
+
     @Override
     public void update(String orderId, OrderStatus status) {
         if (status == OrderStatus.CONFIRMED ||
             status == OrderStatus.SHIPPED ||
             status == OrderStatus.CANCELLED) {
 
-            System.out.println("Warehouse Service: Processing Order " +
-                    orderId + " -> " + status);
+            sink.publish(new OrderEvent("WarehouseService", orderId, status, "Processing order"));
         }
     }
 }
@@ -168,13 +499,19 @@ class WarehouseService implements OrderObserver {
  * Reacts ONLY when order is cancelled (refund)
  */
 class PaymentService implements OrderObserver {
+    private final EventSink sink;
+
+    public PaymentService(EventSink sink) {
+        this.sink = sink;
+    }
+
     @Override
     public void update(String orderId, OrderStatus status) {
         if (status == OrderStatus.CANCELLED) {
-            System.out.println("Payment Service: Initiating refund for Order " + orderId);
+            sink.publish(new OrderEvent("PaymentService", orderId, status, "Initiating refund"));
         }
         else{
-            System.out.println("Payment Service: Payment is done successfully for Order " + orderId);
+            sink.publish(new OrderEvent("PaymentService", orderId, status, "Payment is done successfully"));
         }
     }
 }
@@ -186,14 +523,23 @@ class PaymentService implements OrderObserver {
 public class Main {
     public static void main(String[] args) {
 
+        // Shared asynchronous sink, observers only enqueue structured events
+        Path eventLog;
+        try {
+            eventLog = Files.createTempFile("order-events", ".log");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create event log", e);
+        }
+        EventSink sink = new AsyncFileEventSink(eventLog, 1024);
+
         // Create Order (Subject)
         Order order = new Order("ORD-1001");
 
         // Create Observers
-        OrderObserver customerApp = new CustomerApp();
-        OrderObserver emailService = new EmailService();
-        OrderObserver warehouseService = new WarehouseService();
-        OrderObserver paymentService = new PaymentService();
+        OrderObserver customerApp = new CustomerApp(sink);
+        OrderObserver emailService = new EmailService(sink);
+        OrderObserver warehouseService = new WarehouseService(sink);
+        OrderObserver paymentService = new PaymentService(sink);
 
         // Register observers
         order.registerObserver(customerApp);
@@ -207,5 +553,20 @@ public class Main {
         order.setOrderStatus(OrderStatus.SHIPPED);
         order.setOrderStatus(OrderStatus.DELIVERED);
         order.setOrderStatus(OrderStatus.CANCELLED);
+
+        // Free text stays on one line: quotes and newlines are escaped
+        sink.publish(new OrderEvent("Support", "ORD-1001", OrderStatus.CANCELLED,
+                "Customer note: \"leave at door\"\nRing twice"));
+
+        // Flush pending events and release the file
+        sink.close();
+        try {
+            List<String> lines = Files.readAllLines(eventLog, StandardCharsets.UTF_8);
+            System.out.println("\nObserver events written: " + lines.size() + " lines, last: " +
+                    lines.get(lines.size() - 1));
+            Files.delete(eventLog);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read event log", e);
+        }
     }
 }